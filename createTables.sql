@@ -1,11 +1,37 @@
 -- Add all your SQL setup statements here. 
+DROP TABLE IF EXISTS ReservationLeg_cartierc;
+DROP TABLE IF EXISTS BalanceLedger_cartierc;
+DROP TABLE IF EXISTS ResChanges_cartierc;
 DROP TABLE IF EXISTS User_cartierc;
 CREATE TABLE User_cartierc (
   username VARCHAR(30) PRIMARY KEY NOT NULL,
   password BYTEA NOT NULL,
-  balance INT NOT NULL
+  balance INT NOT NULL, -- as of the last compaction; add the user's BalanceLedger_cartierc deltas
+  resVersion BIGINT NOT NULL DEFAULT 0, -- as of the last compaction; add the user's ResChanges_cartierc rows
+  uid SERIAL UNIQUE NOT NULL -- keys the user's advisory locks
 );
 
+-- A row for every change to a user's reservations since they were last folded into
+-- User_cartierc.resVersion (see ReservationChanges)
+CREATE TABLE ResChanges_cartierc (
+  id BIGSERIAL PRIMARY KEY,
+  username VARCHAR(30) NOT NULL REFERENCES User_cartierc(username)
+);
+CREATE INDEX ResChangesUsers_cartierc ON ResChanges_cartierc (username);
+
+-- Changes to users' balances since they were last folded into User_cartierc (see BalanceLedger)
+CREATE TABLE BalanceLedger_cartierc (
+  id BIGSERIAL PRIMARY KEY,
+  username VARCHAR(30) NOT NULL REFERENCES User_cartierc(username),
+  delta INT NOT NULL,
+  pending BOOLEAN NOT NULL DEFAULT FALSE, -- a payment's hold on the balance, until it's settled
+  created TIMESTAMP NOT NULL DEFAULT now()
+);
+CREATE INDEX BalanceLedgerUsers_cartierc ON BalanceLedger_cartierc (username);
+
+-- Pending holds by age, for withdrawing those whose payment never finished
+CREATE INDEX BalanceLedgerHolds_cartierc ON BalanceLedger_cartierc (created) WHERE pending;
+
 DROP TABLE IF EXISTS Reservation_cartierc;
 CREATE TABLE Reservation_cartierc (
   rid INT PRIMARY KEY NOT NULL,
@@ -13,10 +39,40 @@ CREATE TABLE Reservation_cartierc (
   f2id INT,
   username VARCHAR(30) NOT NULL,
   isPaidFor INT NOT NULL, -- 1 if true, else 0
+  travelDay INT NOT NULL, -- day_of_month of f1id, so users can't book twice in a day
+  seats INT NOT NULL, -- passengers booked together on this reservation, each paid for
+  holdExpires TIMESTAMP, -- when the seats are released unless paid for; NULL once paid, or never
 
   -- FOREIGN KEY (f1id) REFERENCES Flights(fid),
   -- FOREIGN KEY (f2id) REFERENCES Flights(fid),
-  FOREIGN KEY (username) REFERENCES User_cartierc(username)
+  FOREIGN KEY (username) REFERENCES User_cartierc(username),
+  UNIQUE (username, travelDay)
+);
+
+-- Each user's reservations in order, for paging through them (see Query.transaction_reservationsPage)
+CREATE INDEX ReservationUsers_cartierc ON Reservation_cartierc (username, rid);
+
+-- Unpaid holds by expiry, for releasing expired ones oldest first (see SeatHolds)
+CREATE INDEX ReservationHolds_cartierc ON Reservation_cartierc (holdExpires) WHERE isPaidFor = 0;
+
+-- Seats left on each flight that has been booked, created on its first booking
+DROP TABLE IF EXISTS Seats_cartierc;
+CREATE TABLE Seats_cartierc (
+  fid INT PRIMARY KEY NOT NULL,
+  remaining INT NOT NULL
+);
+
+-- Reservation ids; each value reserves a block of flightapp.rid_block_size ids for one JVM
+DROP SEQUENCE IF EXISTS ReservationIds_cartierc;
+CREATE SEQUENCE ReservationIds_cartierc START WITH 1;
+
+-- Flights after the 2nd of itineraries with more than two (see flightapp.max_legs)
+CREATE TABLE ReservationLeg_cartierc (
+  rid INT NOT NULL REFERENCES Reservation_cartierc(rid),
+  legNum INT NOT NULL, -- 3 for the 3rd flight, and so on
+  fid INT NOT NULL,
+
+  PRIMARY KEY (rid, legNum)
 );
 
 -- When we test your submission, you can assume that the following base
@@ -0,0 +1,52 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Folds the BalanceLedger_cartierc deltas back into User_cartierc.balance.
+ *
+ * Payments don't update a user's row: they append a (negative) delta to the ledger, and a
+ * user's balance is their row's balance plus all of their settled deltas.  A payment appends
+ * its cost as a pending hold and commits it, then, in one statement, settles it and marks its
+ * reservations paid only if the balance covers it with every other pending hold counted too,
+ * withdrawing it otherwise.  Of any payments racing on one account, whichever settles last
+ * sees all the others' holds, so together they can't overdraw it, and none of them waits on
+ * another (see Query.transaction_payBatch).
+ *
+ * Compaction moves the oldest settled deltas into the rows in one statement, so a balance
+ * read before or after it adds up the same.  It also withdraws holds left pending for over
+ * STALE_HOLD_SECS by payments that never finished.
+ */
+public class BalanceLedger {
+  // Deletes up to LIMIT of the oldest settled deltas and adds them to their users' rows,
+  // returning how many were folded
+  private static final String COMPACT_SQL = "WITH Folded AS (DELETE FROM BalanceLedger_cartierc WHERE id IN " +
+                                            "(SELECT id FROM BalanceLedger_cartierc WHERE NOT pending ORDER BY id LIMIT ?) " +
+                                            "RETURNING username, delta), " +
+                                            "Updated AS (UPDATE User_cartierc AS U SET balance = U.balance + F.delta " +
+                                            "FROM (SELECT username, SUM(delta) AS delta FROM Folded GROUP BY username) AS F " +
+                                            "WHERE U.username = F.username RETURNING U.username) " +
+                                            "SELECT COUNT(*) AS folded FROM Folded";
+
+  private static final String WITHDRAW_STALE_SQL = "DELETE FROM BalanceLedger_cartierc " +
+                                                   "WHERE pending AND created < now() - make_interval(secs => ?)";
+
+  // Far longer than any payment takes between holding its cost and settling it
+  private static final int STALE_HOLD_SECS = 300;
+
+  private BalanceLedger() { }
+
+  /**
+   * Withdraws stale holds, then folds every settled delta into its user's row, batchSize at a
+   * time, over conn (which must be in auto-commit mode, so each batch is its own transaction).
+   * Returns how many were folded.
+   */
+  public static int compact(Connection conn, int batchSize) throws SQLException {
+    PreparedStatement withdrawStmt = conn.prepareStatement(WITHDRAW_STALE_SQL);
+    withdrawStmt.setInt(1, STALE_HOLD_SECS);
+    withdrawStmt.executeUpdate();
+    withdrawStmt.close();
+
+    return MaintenanceScheduler.runInBatches(conn, COMPACT_SQL, batchSize);
+  }
+}
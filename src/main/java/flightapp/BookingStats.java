@@ -0,0 +1,70 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts how bookings end, across every session in the JVM, so that booking strategies can be
+ * compared under load.
+ *
+ * Every booking that reaches the database ends in exactly one of booked, rejected (the user
+ * already has a reservation that day, or a flight is full), or failed (an error, or too many
+ * retries).  Attempts that were rolled back because of a deadlock or serialization failure
+ * and then retried are counted separately, as aborts.
+ */
+public class BookingStats {
+  private final AtomicLong booked = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong aborts = new AtomicLong();
+  private final AtomicLong lockWaitNanos = new AtomicLong();
+
+  public void recordBooked() {
+    booked.incrementAndGet();
+  }
+
+  public void recordRejected() {
+    rejected.incrementAndGet();
+  }
+
+  public void recordFailed() {
+    failed.incrementAndGet();
+  }
+
+  public void recordAbort() {
+    aborts.incrementAndGet();
+  }
+
+  /**
+   * Adds to the time spent waiting for flight locks before checking capacity
+   */
+  public void recordLockWait(long nanos) {
+    lockWaitNanos.addAndGet(nanos);
+  }
+
+  public long booked() {
+    return booked.get();
+  }
+
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public long failed() {
+    return failed.get();
+  }
+
+  public long aborts() {
+    return aborts.get();
+  }
+
+  public long lockWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(lockWaitNanos.get());
+  }
+
+  @Override
+  public String toString() {
+    return "BookingStats[booked=" + booked() + ", rejected=" + rejected() + ", failed=" + failed()
+        + ", aborts=" + aborts() + ", lockWaitMillis=" + lockWaitMillis() + "]";
+  }
+}
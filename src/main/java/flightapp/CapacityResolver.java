@@ -0,0 +1,158 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+
+/**
+ * Maps a flight's tail number to its number of seats.
+ *
+ * The N_Numbers / Aircraft_Types join is read once into a primitive hash table, so looking up
+ * a capacity costs no database round trip.  Tail numbers are at most 6 characters of [0-9A-Z],
+ * so each one is packed into a long key; the rare tail number that doesn't fit is kept in a
+ * regular map instead.  Aircraft added later get a capacity once the table is refreshed,
+ * which Query does in the background every flightapp.capacity_refresh_secs.
+ */
+public class CapacityResolver {
+  private static final String CAPACITIES_SQL = "SELECT N.n_number, A.num_seats " +
+                                               "FROM N_Numbers AS N, Aircraft_Types AS A " +
+                                               "WHERE N.mfr_mdl_code = A.atid";
+
+  // Returned for tail numbers with no matching aircraft, as Query.getCapacity always has
+  public static final int UNKNOWN_CAPACITY = -1;
+
+  private static final int MAX_PACKED_LENGTH = 6;
+  private static final int RADIX = 37;  // 0 is reserved so that "1" and "01" pack differently
+
+  // Shared by every Query in this JVM; loaded by the first one that asks for it
+  private static CapacityResolver instance = null;
+
+  // Replaced wholesale on refresh, so readers never see a half-built table
+  private volatile Table table;
+  private int fingerprint;  // of the capacities in table, to tell if a refresh changed any
+
+  /**
+   * Returns the shared resolver, loading it over conn if this is the first call
+   */
+  public static synchronized CapacityResolver getInstance(Connection conn) throws SQLException {
+    if (instance == null) {
+      instance = new CapacityResolver();
+      instance.refresh(conn);
+    }
+    return instance;
+  }
+
+  /**
+   * Refreshes the shared resolver over conn, if one has been loaded.  Returns true if any
+   * capacity changed.
+   */
+  public static boolean refreshShared(Connection conn) throws SQLException {
+    CapacityResolver resolver;
+    synchronized (CapacityResolver.class) {
+      resolver = instance;
+    }
+    return resolver != null && resolver.refresh(conn);
+  }
+
+  private CapacityResolver() { }
+
+  /**
+   * Re-reads every aircraft's capacity from the database.  Returns true if any changed (or
+   * this is the first read).
+   */
+  public synchronized boolean refresh(Connection conn) throws SQLException {
+    Map<String, Integer> seats = new HashMap<>();
+    Statement stmt = conn.createStatement();
+    ResultSet rs = stmt.executeQuery(CAPACITIES_SQL);
+    while (rs.next()) {
+      seats.put(rs.getString("n_number"), rs.getInt("num_seats"));
+    }
+    rs.close();
+    stmt.close();
+
+    int newFingerprint = seats.hashCode() * 31 + seats.size();
+    if (table != null && newFingerprint == fingerprint) return false;
+    fingerprint = newFingerprint;
+    table = new Table(seats);
+    return true;
+  }
+
+  /**
+   * Returns the number of seats on the aircraft with the given tail number, or
+   * UNKNOWN_CAPACITY if it isn't found
+   */
+  public int capacityOf(String tailNum) {
+    return table.get(tailNum);
+  }
+
+  // Packs tailNum into a non-zero long, or returns 0 if it can't be packed
+  private static long pack(String tailNum) {
+    if (tailNum == null || tailNum.isEmpty() || tailNum.length() > MAX_PACKED_LENGTH) return 0;
+
+    long key = 0;
+    for (int i = 0; i < tailNum.length(); i++) {
+      char c = tailNum.charAt(i);
+      int digit;
+      if (c >= '0' && c <= '9') {
+        digit = c - '0' + 1;
+      } else if (c >= 'A' && c <= 'Z') {
+        digit = c - 'A' + 11;
+      } else {
+        return 0;
+      }
+      key = key * RADIX + digit;
+    }
+    return key;
+  }
+
+  /**
+   * An immutable open-addressing table from packed tail number to seats
+   */
+  private static class Table {
+    private final long[] keys;  // 0 marks an empty slot
+    private final int[] values;
+    private final int mask;
+    private final Map<String, Integer> unpacked = new HashMap<>();
+
+    Table(Map<String, Integer> seats) {
+      // keep the load factor at or below 1/2 so probe sequences stay short
+      int slots = Integer.highestOneBit(Math.max(seats.size(), 1) * 2) * 2;
+      keys = new long[slots];
+      values = new int[slots];
+      mask = slots - 1;
+
+      for (Map.Entry<String, Integer> entry : seats.entrySet()) {
+        long key = pack(entry.getKey());
+        if (key == 0) {
+          unpacked.put(entry.getKey(), entry.getValue());
+          continue;
+        }
+        int slot = slotOf(key);
+        while (keys[slot] != 0 && keys[slot] != key) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = entry.getValue();
+      }
+    }
+
+    int get(String tailNum) {
+      long key = pack(tailNum);
+      if (key == 0) {
+        Integer seats = (tailNum == null) ? null : unpacked.get(tailNum);
+        return seats == null ? UNKNOWN_CAPACITY : seats;
+      }
+      for (int slot = slotOf(key); keys[slot] != 0; slot = (slot + 1) & mask) {
+        if (keys[slot] == key) return values[slot];
+      }
+      return UNKNOWN_CAPACITY;
+    }
+
+    private int slotOf(long key) {
+      long h = key * 0x9E3779B97F4A7C15L;  // Fibonacci hashing spreads the packed digits
+      return (int) (h ^ (h >>> 32)) & mask;
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package flightapp;
 
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -50,6 +51,31 @@ public class DBConnUtils {
     return conn;
   }
 
+  /**
+   * Get an optional application setting, such as flightapp.search_mode
+   *
+   * Looks in dbconn.properties first, if there is one, then falls back to the Java system
+   * property of the same name.
+   *
+   * @returns defaultValue if the setting wasn't specified, or was specified and empty
+   * @throws IOException
+   */
+  public static String getProperty(String name, String defaultValue) throws IOException {
+    Properties configProps = new Properties();
+    try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+      configProps.load(in);
+    } catch (FileNotFoundException e) {
+      // settings that don't need a database, such as in unit tests, can still be given as
+      // system properties
+    }
+
+    String value = configProps.getProperty(name);
+    if (value == null || value.isEmpty()) {
+      value = System.getProperty(name);
+    }
+    return (value == null || value.isEmpty()) ? defaultValue : value.trim();
+  }
+
   /**
    * Get the table suffix
    *
@@ -0,0 +1,121 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense integer ids to strings, so that city names and carrier ids can be stored,
+ * compared, and hashed as ints and only turned back into text when printed.
+ *
+ * There is one dictionary of each kind per JVM.  In "index" search mode both are filled from
+ * the Flights table when the first Query starts, so a city missing from CITIES has no flights
+ * at all; in the other modes names are only interned as searches find them in Flights (never
+ * straight from what a user typed, since ids aren't freed).  Ids are
+ * never reused or reassigned, and lookups don't lock.
+ */
+public class Dictionary {
+  private static final String CITIES_SQL = "SELECT origin_city AS name FROM Flights " +
+                                           "UNION SELECT dest_city FROM Flights";
+  private static final String CARRIERS_SQL = "SELECT DISTINCT cid AS name FROM Flights";
+
+  public static final Dictionary CITIES = new Dictionary();
+  public static final Dictionary CARRIERS = new Dictionary();
+
+  // Returned by idOf for strings that haven't been assigned an id
+  public static final int NOT_FOUND = -1;
+
+  private static boolean loaded = false;
+
+  private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] names = new String[16];  // grown under the lock on this
+  private volatile int size = 0;
+
+  /**
+   * Fills CITIES and CARRIERS from the Flights table, if that hasn't been done yet
+   */
+  public static synchronized void loadFlightNames(Connection conn) throws SQLException {
+    if (loaded) return;
+
+    Statement stmt = conn.createStatement();
+    ResultSet citiesRs = stmt.executeQuery(CITIES_SQL);
+    while (citiesRs.next()) {
+      CITIES.intern(citiesRs.getString("name"));
+    }
+    citiesRs.close();
+
+    ResultSet carriersRs = stmt.executeQuery(CARRIERS_SQL);
+    while (carriersRs.next()) {
+      CARRIERS.intern(carriersRs.getString("name"));
+    }
+    carriersRs.close();
+    stmt.close();
+    loaded = true;
+  }
+
+  /**
+   * Fills CITIES and CARRIERS with names saved from an earlier load, so that name i gets id i,
+   * instead of reading them from the Flights table.  Returns false, leaving the dictionaries
+   * unmarked as loaded, if ids already assigned in this JVM don't agree with the saved ones.
+   */
+  static synchronized boolean loadSavedNames(List<String> cities, List<String> carriers) {
+    if (!CITIES.internAll(cities) || !CARRIERS.internAll(carriers)) return false;
+    loaded = true;
+    return true;
+  }
+
+  // Interns names in order, returning whether each one's id is its index
+  private boolean internAll(List<String> names) {
+    for (int i = 0; i < names.size(); i++) {
+      if (intern(names.get(i)) != i) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the id of s, or NOT_FOUND if it doesn't have one
+   */
+  public int idOf(String s) {
+    Integer id = (s == null) ? null : ids.get(s);
+    return id == null ? NOT_FOUND : id;
+  }
+
+  /**
+   * Returns the id of s, assigning the next free one if it doesn't have one yet
+   */
+  public int intern(String s) {
+    Integer id = ids.get(s);
+    if (id != null) return id;
+
+    synchronized (this) {
+      id = ids.get(s);
+      if (id != null) return id;
+
+      if (size == names.length) {
+        names = Arrays.copyOf(names, size * 2);
+      }
+      names[size] = s;
+      size++;  // publish the name before the id, so nameOf works for any id idOf returns
+      ids.put(s, size - 1);
+      return size - 1;
+    }
+  }
+
+  /**
+   * Returns the string with the given id
+   */
+  public String nameOf(int id) {
+    if (id < 0 || id >= size) throw new IllegalArgumentException("No string with id " + id);
+    return names[id];
+  }
+
+  /**
+   * Returns the number of ids assigned so far; ids run from 0 up to this number
+   */
+  public int size() {
+    return size;
+  }
+}
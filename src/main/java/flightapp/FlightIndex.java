@@ -0,0 +1,400 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+/**
+ * An in-memory copy of the non-cancelled Flights, indexed by (day_of_month, origin_city) so
+ * that searches can be answered without going to the database.
+ *
+ * The flights live in a FlightStore sorted by day, then origin, then destination, so every
+ * (day, origin) pair owns a contiguous run of rows; that run is both the origin's adjacency
+ * list for one-stop expansion and, once narrowed by destination, the direct flights.
+ */
+public class FlightIndex {
+  private static final String LOAD_SQL = "SELECT fid, day_of_month, cid, tail_num, op_carrier_flight_num, " +
+                                         "origin_city, dest_city, duration_mins, price " +
+                                         "FROM Flights WHERE cancelled = 0";
+
+  private static final int MAX_DAY = 31;
+
+  // Shared by every Query in this JVM; loaded by the first one that asks for it
+  private static FlightIndex instance = null;
+
+  private final FlightStore store;
+  private final int numCities;
+  // Rows offsets[day * numCities + origin] up to offsets[day * numCities + origin + 1] of
+  // store leave origin on day
+  private final int[] offsets;
+
+  /**
+   * Receives the rows of a one-stop itinerary
+   */
+  public interface RowPairConsumer {
+    void accept(int firstRow, int secondRow);
+  }
+
+  /**
+   * Receives the rows of itineraries found by forEachPath, and bounds how far it searches
+   */
+  public interface PathConsumer {
+    // Returns the largest total time of an itinerary still worth passing to accept
+    int maxTotalTime();
+
+    void accept(int[] rows, int totalTime);
+  }
+
+  /**
+   * Returns the shared index, loading it over conn if this is the first call
+   */
+  public static synchronized FlightIndex getInstance(Connection conn) throws SQLException {
+    if (instance == null) {
+      instance = load(conn);
+    }
+    return instance;
+  }
+
+  /**
+   * Returns the shared index, opening it from the FlightSnapshot at snapshotPath if this is
+   * the first call
+   */
+  public static synchronized FlightIndex getInstance(Path snapshotPath) throws IOException {
+    if (instance == null) {
+      instance = FlightSnapshot.read(snapshotPath);
+    }
+    return instance;
+  }
+
+  // Reads every non-cancelled flight into a new index
+  private static FlightIndex load(Connection conn) throws SQLException {
+    CapacityResolver capacities = CapacityResolver.getInstance(conn);
+    FlightStore unsorted = new FlightStore();
+    Statement stmt = conn.createStatement();
+    ResultSet rs = stmt.executeQuery(LOAD_SQL);
+    while (rs.next()) {
+      int day = rs.getInt("day_of_month");
+      if (day < 1 || day > MAX_DAY) continue;
+
+      unsorted.add(rs.getInt("fid"), day, Dictionary.CARRIERS.intern(rs.getString("cid")),
+                   rs.getInt("op_carrier_flight_num"), Dictionary.CITIES.intern(rs.getString("origin_city")),
+                   Dictionary.CITIES.intern(rs.getString("dest_city")), rs.getInt("duration_mins"),
+                   capacities.capacityOf(rs.getString("tail_num")), rs.getInt("price"));
+    }
+    rs.close();
+    stmt.close();
+    return new FlightIndex(unsorted);
+  }
+
+  // Wraps flights already sorted and bucketed by an earlier index, as saved by FlightSnapshot
+  FlightIndex(FlightStore store, int numCities, int[] offsets) {
+    if (offsets.length != (MAX_DAY + 1) * numCities + 1 || offsets[offsets.length - 1] != store.size()) {
+      throw new IllegalArgumentException("Offsets don't match " + numCities + " cities and "
+                                         + store.size() + " flights");
+    }
+    this.store = store;
+    this.numCities = numCities;
+    this.offsets = offsets;
+  }
+
+  // Sorts the rows of unsorted by (day, origin, dest) and builds the offsets over them
+  FlightIndex(FlightStore unsorted) {
+    numCities = Dictionary.CITIES.size();
+    offsets = new int[(MAX_DAY + 1) * numCities + 1];
+
+    // counting sort on (day, origin)...
+    for (int row = 0; row < unsorted.size(); row++) {
+      offsets[bucket(unsorted.dayOfMonth(row), unsorted.originId(row)) + 1]++;
+    }
+    for (int b = 1; b < offsets.length; b++) {
+      offsets[b] += offsets[b - 1];
+    }
+    int[] order = new int[unsorted.size()];
+    int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+    for (int row = 0; row < unsorted.size(); row++) {
+      order[next[bucket(unsorted.dayOfMonth(row), unsorted.originId(row))]++] = row;
+    }
+
+    // ...then by dest within each bucket
+    for (int b = 0; b + 1 < offsets.length; b++) {
+      int from = offsets[b];
+      int to = offsets[b + 1];
+      if (to - from < 2) continue;
+
+      long[] keys = new long[to - from];
+      for (int i = from; i < to; i++) {
+        keys[i - from] = ((long) unsorted.destId(order[i]) << 32) | order[i];
+      }
+      Arrays.sort(keys);
+      for (int i = from; i < to; i++) {
+        order[i] = (int) keys[i - from];
+      }
+    }
+    store = unsorted.select(order);
+  }
+
+  /**
+   * Returns the store holding the indexed flights; rows passed to callbacks refer to it
+   */
+  public FlightStore store() {
+    return store;
+  }
+
+  /**
+   * Returns the number of flights held in the index
+   */
+  public int size() {
+    return store.size();
+  }
+
+  int numCities() {
+    return numCities;
+  }
+
+  int[] offsets() {
+    return offsets;
+  }
+
+  /**
+   * Calls action on the row of every flight from city origin to city dest on dayOfMonth, in
+   * no particular order.  Cities are Dictionary.CITIES ids.
+   */
+  public void forEachDirect(int dayOfMonth, int origin, int dest, IntConsumer action) {
+    if (!isValidDay(dayOfMonth) || !isIndexedCity(origin) || !isIndexedCity(dest)) return;
+
+    int bucket = bucket(dayOfMonth, origin);
+    for (int row = firstRowTo(dest, offsets[bucket], offsets[bucket + 1]);
+         row < offsets[bucket + 1] && store.destId(row) == dest; row++) {
+      action.accept(row);
+    }
+  }
+
+  /**
+   * Calls action on every pair of distinct flights on dayOfMonth where the first flies from
+   * origin to some city C and the second flies from C to dest, in no particular order.  These
+   * are the same pairs Query's INDIRECT_SQL returns.
+   */
+  public void forEachOneStop(int dayOfMonth, int origin, int dest, RowPairConsumer action) {
+    if (!isValidDay(dayOfMonth) || !isIndexedCity(origin) || !isIndexedCity(dest)) return;
+
+    int bucket = bucket(dayOfMonth, origin);
+    int end = offsets[bucket + 1];
+    for (int first = offsets[bucket]; first < end; ) {
+      // the run of first legs that all connect through the same city
+      int via = store.destId(first);
+      int firstEnd = first;
+      while (firstEnd < end && store.destId(firstEnd) == via) firstEnd++;
+
+      int viaBucket = bucket(dayOfMonth, via);
+      int secondStart = firstRowTo(dest, offsets[viaBucket], offsets[viaBucket + 1]);
+      int secondEnd = secondStart;
+      while (secondEnd < offsets[viaBucket + 1] && store.destId(secondEnd) == dest) secondEnd++;
+
+      for (int f1 = first; f1 < firstEnd; f1++) {
+        for (int f2 = secondStart; f2 < secondEnd; f2++) {
+          if (store.fid(f1) != store.fid(f2)) {
+            action.accept(f1, f2);
+          }
+        }
+      }
+      first = firstEnd;
+    }
+  }
+
+  /**
+   * Calls action on every itinerary on dayOfMonth of minLegs to maxLegs flights from origin to
+   * dest that doesn't pass through any city twice (other than ending where it started), in
+   * ascending order of total time and stopping once that exceeds action.maxTotalTime().
+   *
+   * This is a best-first search over the day's flights: partial itineraries are expanded
+   * shortest first, and any that are already longer than action.maxTotalTime() are dropped, so
+   * a caller keeping the k best only pays for the itineraries that could still make the cut.
+   * Since that bound only tightens once k have been found, partial itineraries are also only
+   * extended to cities from which dest can still be reached in the flights they have left.
+   * Flight times must not be negative.
+   */
+  public void forEachPath(int dayOfMonth, int origin, int dest, int minLegs, int maxLegs,
+                          PathConsumer action) {
+    if (!isValidDay(dayOfMonth) || !isIndexedCity(origin) || !isIndexedCity(dest)) return;
+
+    // Partial itineraries are stored as linked lists of legs, with the frontier ordered by
+    // their total times so far
+    int[] hops = hopsTo(dayOfMonth, dest, maxLegs - 1);
+    Paths paths = new Paths();
+    LongHeap frontier = new LongHeap();
+    int bucket = bucket(dayOfMonth, origin);
+    for (int row = offsets[bucket]; row < offsets[bucket + 1]; row++) {
+      int next = store.destId(row);
+      if (next == origin && origin != dest) continue;
+      if (next != dest && hops[next] > maxLegs - 1) continue;  // can't get to dest in time
+      frontier.add(key(store.time(row), paths.add(row, Paths.NONE)));
+    }
+
+    while (!frontier.isEmpty()) {
+      long key = frontier.poll();
+      int node = (int) key;
+      int totalTime = (int) (key >>> 32);
+      if (totalTime > action.maxTotalTime()) break;  // so is everything after it
+
+      int city = store.destId(paths.rows[node]);
+      int legs = paths.legs[node];
+      if (city == dest) {
+        if (legs >= minLegs) action.accept(paths.rowsOf(node), totalTime);
+        continue;
+      }
+      if (legs == maxLegs) continue;
+
+      // the last leg can only be one of the flights to dest
+      int cityBucket = bucket(dayOfMonth, city);
+      int end = offsets[cityBucket + 1];
+      int start = (legs + 1 == maxLegs) ? firstRowTo(dest, offsets[cityBucket], end) : offsets[cityBucket];
+      for (int row = start; row < end; row++) {
+        int next = store.destId(row);
+        if (legs + 1 == maxLegs && next != dest) break;
+        int nextTime = totalTime + store.time(row);
+        if (nextTime > action.maxTotalTime()) continue;
+        if (next != dest && hops[next] > maxLegs - legs - 1) continue;
+        if (next != dest && (next == origin || paths.visits(node, next))) continue;
+        if (next == dest && legs + 1 < minLegs) continue;
+        frontier.add(key(nextTime, paths.add(row, node)));
+      }
+    }
+  }
+
+  // Returns, for every city, the fewest flights on dayOfMonth it takes to get from it to dest,
+  // or more than maxHops if it takes more than that, by a breadth-first search backwards from
+  // dest over the day's flights
+  private int[] hopsTo(int dayOfMonth, int dest, int maxHops) {
+    int[] hops = new int[numCities];
+    Arrays.fill(hops, maxHops + 1);
+    hops[dest] = 0;
+    int dayStart = offsets[bucket(dayOfMonth, 0)];
+    int dayEnd = offsets[bucket(dayOfMonth + 1, 0)];
+    for (int hop = 1; hop <= maxHops; hop++) {
+      boolean reachedMore = false;
+      for (int row = dayStart; row < dayEnd; row++) {
+        int from = store.originId(row);
+        if (hops[from] > hop && hops[store.destId(row)] == hop - 1) {
+          hops[from] = hop;
+          reachedMore = true;
+        }
+      }
+      if (!reachedMore) break;
+    }
+    return hops;
+  }
+
+  // Orders frontier entries by total time; node numbers are only there to be unpacked
+  private static long key(int totalTime, int node) {
+    return ((long) totalTime << 32) | node;
+  }
+
+  // A min-heap of frontier entries, kept as an array of longs rather than boxed in a
+  // PriorityQueue
+  private static class LongHeap {
+    private long[] entries = new long[64];
+    private int size = 0;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void add(long entry) {
+      if (size == entries.length) entries = Arrays.copyOf(entries, size * 2);
+      int i = size++;
+      while (i > 0 && entries[(i - 1) / 2] > entry) {
+        entries[i] = entries[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      entries[i] = entry;
+    }
+
+    long poll() {
+      long top = entries[0];
+      long last = entries[--size];
+      int i = 0;
+      while (2 * i + 1 < size) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && entries[child + 1] < entries[child]) child++;
+        if (entries[child] >= last) break;
+        entries[i] = entries[child];
+        i = child;
+      }
+      entries[i] = last;
+      return top;
+    }
+  }
+
+  // The partial itineraries built by one forEachPath call; node n flies row rows[n] after
+  // the legs of node parents[n], which is NONE for a first leg
+  private class Paths {
+    static final int NONE = -1;
+
+    int size = 0;
+    int[] rows = new int[64];
+    int[] parents = new int[64];
+    int[] legs = new int[64];
+
+    int add(int row, int parent) {
+      if (size == rows.length) {
+        rows = Arrays.copyOf(rows, size * 2);
+        parents = Arrays.copyOf(parents, size * 2);
+        legs = Arrays.copyOf(legs, size * 2);
+      }
+      rows[size] = row;
+      parents[size] = parent;
+      legs[size] = (parent == NONE) ? 1 : legs[parent] + 1;
+      return size++;
+    }
+
+    // Returns true if the itinerary ending at node already lands in city
+    boolean visits(int node, int city) {
+      for (int n = node; n != NONE; n = parents[n]) {
+        if (store.destId(rows[n]) == city) return true;
+      }
+      return false;
+    }
+
+    // Returns the rows of the itinerary ending at node, in the order they're flown
+    int[] rowsOf(int node) {
+      int[] path = new int[legs[node]];
+      for (int n = node, i = path.length - 1; n != NONE; n = parents[n], i--) {
+        path[i] = rows[n];
+      }
+      return path;
+    }
+  }
+
+  // Returns the first row in [from, to) going to dest, or to if there isn't one
+  private int firstRowTo(int dest, int from, int to) {
+    int lo = from;
+    int hi = to;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (store.destId(mid) < dest) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int bucket(int dayOfMonth, int origin) {
+    return dayOfMonth * numCities + origin;
+  }
+
+  // Cities interned after the index was built have no flights in it
+  private boolean isIndexedCity(int city) {
+    return city >= 0 && city < numCities;
+  }
+
+  private static boolean isValidDay(int dayOfMonth) {
+    return dayOfMonth >= 1 && dayOfMonth <= MAX_DAY;
+  }
+}
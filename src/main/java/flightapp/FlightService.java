@@ -6,13 +6,30 @@ import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
+  // Reservations listed by "reservations after <rid>" without a limit
+  private static final int DEFAULT_RESERVATIONS_LIMIT = 50;
 
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(QueryAbstract q, String command) {
+    StringBuilder response = new StringBuilder();
+    try {
+      execute(q, command, response);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);  // StringBuilders don't throw
+    }
+    return response.toString();
+  }
+
+  /**
+   * Like execute(q, command), but writes the response to out as it's made, so a page of
+   * reservations goes out as its rows arrive instead of being held whole.  Returns true if
+   * the command was quit.
+   */
+  public static boolean execute(QueryAbstract q, String command, Appendable out) throws IOException {
     String[] tokens = tokenize(command.trim());
-    String response;
+    String response = null;  // if not written to out already
 
     // empty input
     if (tokens.length == 0) {
@@ -44,27 +61,50 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      boolean perDay = tokens.length == 7 && tokens[6].equals("perday");
+      if (tokens.length == 6 || perDay) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
-          int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
+          // a day, or a range of days such as 10-14
+          int dash = tokens[4].indexOf('-', 1);
+          if (dash < 0 && !perDay) {
+            int day = Integer.valueOf(tokens[4]);
+            response = q.search(originCity, destinationCity, direct, day, count);
+          } else {
+            int firstDay = Integer.valueOf(dash < 0 ? tokens[4] : tokens[4].substring(0, dash));
+            int lastDay = Integer.valueOf(dash < 0 ? tokens[4] : tokens[4].substring(dash + 1));
+            response = q.searchDays(originCity, destinationCity, direct, firstDay, lastDay, count, perDay);
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date or first-last date> <nb itineraries> [perday]";
       }
     }
 
     // book
     else if (tokens[0].equals("book")) {
+      // book <itinerary_id>, or book <itinerary_id> ... [x<passengers>] for a batch
+      boolean hasPassengers = tokens.length > 2 && tokens[tokens.length - 1].startsWith("x");
       if (tokens.length == 2) {
         int itinerary_id = Integer.parseInt(tokens[1]);
         response = q.book(itinerary_id);
+      } else if (tokens.length > 2) {
+        try {
+          int numIds = hasPassengers ? tokens.length - 2 : tokens.length - 1;
+          List<Integer> itinerary_ids = new ArrayList<>();
+          for (int i = 1; i <= numIds; i++) {
+            itinerary_ids.add(Integer.valueOf(tokens[i]));
+          }
+          int passengers = hasPassengers ? Integer.valueOf(tokens[tokens.length - 1].substring(1)) : 1;
+          response = q.bookBatch(itinerary_ids, passengers);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
       } else {
         response = "Error: Please provide an itinerary_id";
       }
@@ -72,14 +112,51 @@ public class FlightService {
 
     // reservations
     else if (tokens[0].equals("reservations")) {
-      response = q.reservations();
+      if (tokens.length == 1) {
+        response = q.reservations();
+      } else {
+        // reservations [after <rid>] [limit <n>]
+        try {
+          int afterRid = 0;
+          int limit = DEFAULT_RESERVATIONS_LIMIT;
+          boolean valid = (tokens.length % 2 == 1);
+          for (int i = 1; valid && i < tokens.length; i += 2) {
+            if (tokens[i].equals("after")) {
+              afterRid = Integer.valueOf(tokens[i + 1]);
+            } else if (tokens[i].equals("limit")) {
+              limit = Integer.valueOf(tokens[i + 1]);
+            } else {
+              valid = false;
+            }
+          }
+          if (valid) {
+            q.reservationsPage(afterRid, limit, out);
+          } else {
+            response = "Error: Please provide reservations [after <reservation id>] [limit <num reservations>]";
+          }
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
+      }
     }
 
     // pay
     else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
+      if (tokens.length == 2 && tokens[1].equals("all")) {
+        response = q.payAll();
+      } else if (tokens.length == 2) {
         int reservation_id = Integer.parseInt(tokens[1]);
         response = q.pay(reservation_id);
+      } else if (tokens.length > 2) {
+        try {
+          List<Integer> reservation_ids = new ArrayList<>();
+          for (int i = 1; i < tokens.length; i++) {
+            reservation_ids.add(Integer.valueOf(tokens[i]));
+          }
+          response = q.payBatch(reservation_ids);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
       } else {
         response = "Error: Please provide a reservation_id";
       }
@@ -95,7 +172,8 @@ public class FlightService {
       response = "Error: unrecognized command '" + tokens[0] + "'";
     }
 
-    return response;
+    if (response != null) out.append(response);
+    return tokens.length > 0 && tokens[0].equals("quit");
   }
 
   /**
@@ -126,9 +204,13 @@ public class FlightService {
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search <origin city> <destination city> <direct> <first day>-<last day> <num itineraries> [perday]");
       System.out.println("> book <itinerary id>");
+      System.out.println("> book <itinerary id> [<itinerary id> ...] [x<passengers>]");
       System.out.println("> pay <reservation id>");
+      System.out.println("> pay all | pay <reservation id> <reservation id> ...");
       System.out.println("> reservations");
+      System.out.println("> reservations [after <reservation id>] [limit <num reservations>]");
       System.out.println("> quit");
 
       // read an input command from the REPL
@@ -136,10 +218,8 @@ public class FlightService {
       System.out.print("> ");
       String command = r.readLine();
 
-      // execute the given input command
-      String response = execute(q, command);
-      System.out.print(response);
-      if (response.equals("Goodbye\n")) {
+      // execute the given input command, writing its response as it goes
+      if (execute(q, command, System.out)) {
         break;
       }
     }
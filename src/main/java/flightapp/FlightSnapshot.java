@@ -0,0 +1,151 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Saves a FlightIndex to a binary file that later JVMs can memory-map instead of reading the
+ * Flights table, so a new node can answer searches almost as soon as it starts.
+ *
+ * The file is big-endian and laid out as:
+ *   int MAGIC, int VERSION
+ *   int city count, then each Dictionary.CITIES name in id order as an int byte count and
+ *     its UTF-8 bytes; the same again for Dictionary.CARRIERS
+ *   zero padding up to a multiple of 4 bytes
+ *   int index city count, int offset count, then the index's offsets
+ *   int flight count, then each FlightStore column in turn as one int per flight
+ * Only the names and offsets are copied onto the heap when the file is read; the flights are
+ * read in place from the mapping for as long as the JVM runs.
+ *
+ * The snapshot is a copy of Flights and N_Numbers / Aircraft_Types as of when it was
+ * written, so it has to be rewritten if those tables change.  Run with
+ *   mvn exec:java -Dexec.mainClass=flightapp.FlightSnapshot -Dexec.args=&lt;path&gt;
+ */
+public class FlightSnapshot {
+  private static final int MAGIC = 0x464C5453;  // "FLTS"
+  // Bump whenever the layout above changes, so old files are rejected instead of misread
+  private static final int VERSION = 1;
+
+  private FlightSnapshot() { }
+
+  /**
+   * Writes index, along with the dictionaries its ids refer to, to path.  The file is written
+   * beside path and then moved over it, so JVMs that have the old file mapped keep reading
+   * the old contents.
+   */
+  public static void write(FlightIndex index, Path path) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(
+             new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeNames(out, Dictionary.CITIES);
+      writeNames(out, Dictionary.CARRIERS);
+      while (out.size() % Integer.BYTES != 0) {
+        out.writeByte(0);
+      }
+
+      out.writeInt(index.numCities());
+      out.writeInt(index.offsets().length);
+      for (int offset : index.offsets()) {
+        out.writeInt(offset);
+      }
+
+      out.writeInt(index.size());
+      index.store().writeTo(out);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Maps the snapshot at path and returns the index it holds, loading Dictionary.CITIES and
+   * Dictionary.CARRIERS from it as well
+   *
+   * @throws IOException if the file can't be read, isn't a snapshot of this version, or its
+   *         dictionaries conflict with ids already assigned in this JVM
+   */
+  public static FlightIndex read(Path path) throws IOException {
+    MappedByteBuffer buf;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      // the mapping stays valid after the channel is closed
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    try {
+      if (buf.getInt() != MAGIC) throw new IOException(path + " is not a flight snapshot");
+      int version = buf.getInt();
+      if (version != VERSION) {
+        throw new IOException(path + " is snapshot version " + version + ", expected " + VERSION);
+      }
+
+      List<String> cities = readNames(buf);
+      List<String> carriers = readNames(buf);
+      buf.position((buf.position() + Integer.BYTES - 1) / Integer.BYTES * Integer.BYTES);
+      if (!Dictionary.loadSavedNames(cities, carriers)) {
+        throw new IOException(path + " doesn't match the cities and carriers already loaded");
+      }
+
+      int numCities = buf.getInt();
+      int[] offsets = new int[buf.getInt()];
+      buf.asIntBuffer().get(offsets);
+      buf.position(buf.position() + offsets.length * Integer.BYTES);
+
+      int size = buf.getInt();
+      if (buf.remaining() != FlightStore.byteSize(size)) {
+        throw new IOException(path + " should hold " + size + " flights but is the wrong length");
+      }
+      return new FlightIndex(FlightStore.wrap(buf, size), numCities, offsets);
+    } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+      throw new IOException(path + " is truncated or corrupt", e);
+    }
+  }
+
+  // Writes every name in dictionary, in id order
+  private static void writeNames(DataOutputStream out, Dictionary dictionary) throws IOException {
+    out.writeInt(dictionary.size());
+    for (int id = 0; id < dictionary.size(); id++) {
+      byte[] bytes = dictionary.nameOf(id).getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  // Reads back the names written by writeNames
+  private static List<String> readNames(ByteBuffer buf) {
+    int count = buf.getInt();
+    List<String> names = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[buf.getInt()];
+      buf.get(bytes);
+      names.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    return names;
+  }
+
+  /**
+   * Loads the flight index from the database and writes it to the path given as the only
+   * argument
+   */
+  public static void main(String[] args) throws IOException, SQLException {
+    if (args.length != 1) {
+      System.err.println("Usage: FlightSnapshot <output path>");
+      System.exit(1);
+    }
+
+    Connection conn = DBConnUtils.openConnection();
+    Dictionary.loadFlightNames(conn);
+    FlightIndex index = FlightIndex.getInstance(conn);
+    conn.close();
+
+    write(index, Paths.get(args[0]));
+    System.out.println("Wrote " + index.size() + " flights to " + args[0]);
+  }
+}
@@ -0,0 +1,210 @@
+package flightapp;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A columnar, append-only table of flights.
+ *
+ * Each column is a buffer of ints indexed by row number, and carriers and cities are stored
+ * as their Dictionary ids, so a row costs a few dozen bytes instead of a Flight object plus its
+ * Strings.  Rows are only turned back into text when they are printed.
+ *
+ * A store either owns heap arrays it can append to, or is a read-only view of columns laid
+ * out back to back in a ByteBuffer, such as a memory-mapped FlightSnapshot.
+ */
+public class FlightStore {
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int NUM_COLUMNS = 9;
+
+  private final boolean readOnly;
+  private int size = 0;
+  private IntBuffer fids;
+  private IntBuffer days;
+  private IntBuffer carriers;  // Dictionary.CARRIERS ids
+  private IntBuffer flightNums;
+  private IntBuffer origins;   // Dictionary.CITIES ids
+  private IntBuffer dests;     // Dictionary.CITIES ids
+  private IntBuffer durations;
+  private IntBuffer capacities;
+  private IntBuffer prices;
+
+  public FlightStore() {
+    this(INITIAL_CAPACITY);
+  }
+
+  private FlightStore(int capacity) {
+    capacity = Math.max(capacity, 1);
+    readOnly = false;
+    fids = IntBuffer.allocate(capacity);
+    days = IntBuffer.allocate(capacity);
+    carriers = IntBuffer.allocate(capacity);
+    flightNums = IntBuffer.allocate(capacity);
+    origins = IntBuffer.allocate(capacity);
+    dests = IntBuffer.allocate(capacity);
+    durations = IntBuffer.allocate(capacity);
+    capacities = IntBuffer.allocate(capacity);
+    prices = IntBuffer.allocate(capacity);
+  }
+
+  // Views the columns of size rows starting at buf's position, as written by writeTo
+  private FlightStore(ByteBuffer buf, int size) {
+    this.readOnly = true;
+    this.size = size;
+    fids = column(buf, 0);
+    days = column(buf, 1);
+    carriers = column(buf, 2);
+    flightNums = column(buf, 3);
+    origins = column(buf, 4);
+    dests = column(buf, 5);
+    durations = column(buf, 6);
+    capacities = column(buf, 7);
+    prices = column(buf, 8);
+  }
+
+  /**
+   * Returns a read-only store over size rows of columns starting at buf's position, in the
+   * layout writeTo produces.  Rows are read straight out of buf, without being copied.
+   */
+  static FlightStore wrap(ByteBuffer buf, int size) {
+    if (buf.remaining() < byteSize(size)) {
+      throw new IllegalArgumentException("Buffer holds fewer than " + size + " rows");
+    }
+    return new FlightStore(buf, size);
+  }
+
+  /**
+   * Returns the number of bytes writeTo uses for size rows
+   */
+  static long byteSize(int size) {
+    return (long) NUM_COLUMNS * size * Integer.BYTES;
+  }
+
+  /**
+   * Writes every row, one column after another, for wrap to read back
+   */
+  void writeTo(DataOutput out) throws IOException {
+    for (IntBuffer column : new IntBuffer[] {fids, days, carriers, flightNums, origins, dests,
+                                             durations, capacities, prices}) {
+      for (int row = 0; row < size; row++) {
+        out.writeInt(column.get(row));
+      }
+    }
+  }
+
+  /**
+   * Appends a flight and returns its row number.  carrier, origin, and dest are ids from
+   * Dictionary.CARRIERS and Dictionary.CITIES.
+   */
+  public int add(int fid, int day, int carrier, int flightNum, int origin, int dest, int time,
+                 int capacity, int price) {
+    if (readOnly) throw new UnsupportedOperationException("FlightStore is read-only");
+    if (size == fids.capacity()) grow();
+
+    int row = size++;
+    fids.put(row, fid);
+    days.put(row, day);
+    carriers.put(row, carrier);
+    flightNums.put(row, flightNum);
+    origins.put(row, origin);
+    dests.put(row, dest);
+    durations.put(row, time);
+    capacities.put(row, capacity);
+    prices.put(row, price);
+    return row;
+  }
+
+  /**
+   * Appends a copy of row of other and returns its row number here
+   */
+  public int addFrom(FlightStore other, int row) {
+    return add(other.fids.get(row), other.days.get(row), other.carriers.get(row),
+               other.flightNums.get(row), other.origins.get(row), other.dests.get(row),
+               other.durations.get(row), other.capacities.get(row), other.prices.get(row));
+  }
+
+  /**
+   * Returns a new store holding the given rows of this one, in the given order
+   */
+  public FlightStore select(int[] rows) {
+    FlightStore selected = new FlightStore(rows.length);
+    for (int row : rows) {
+      selected.add(fids.get(row), days.get(row), carriers.get(row), flightNums.get(row),
+                   origins.get(row), dests.get(row), durations.get(row), capacities.get(row),
+                   prices.get(row));
+    }
+    return selected;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int fid(int row) {
+    return fids.get(row);
+  }
+
+  public int dayOfMonth(int row) {
+    return days.get(row);
+  }
+
+  public String carrierId(int row) {
+    return Dictionary.CARRIERS.nameOf(carriers.get(row));
+  }
+
+  public int flightNum(int row) {
+    return flightNums.get(row);
+  }
+
+  public int originId(int row) {
+    return origins.get(row);
+  }
+
+  public String originCity(int row) {
+    return Dictionary.CITIES.nameOf(origins.get(row));
+  }
+
+  public int destId(int row) {
+    return dests.get(row);
+  }
+
+  public String destCity(int row) {
+    return Dictionary.CITIES.nameOf(dests.get(row));
+  }
+
+  public int time(int row) {
+    return durations.get(row);
+  }
+
+  public int capacity(int row) {
+    return capacities.get(row);
+  }
+
+  public int price(int row) {
+    return prices.get(row);
+  }
+
+  // Returns the index'th column of size rows starting at buf's position
+  private IntBuffer column(ByteBuffer buf, int index) {
+    ByteBuffer column = buf.duplicate();
+    column.position(buf.position() + index * size * Integer.BYTES);
+    column.limit(column.position() + size * Integer.BYTES);
+    return column.slice().order(buf.order()).asIntBuffer();
+  }
+
+  private void grow() {
+    int capacity = fids.capacity() * 2;
+    fids = IntBuffer.wrap(Arrays.copyOf(fids.array(), capacity));
+    days = IntBuffer.wrap(Arrays.copyOf(days.array(), capacity));
+    carriers = IntBuffer.wrap(Arrays.copyOf(carriers.array(), capacity));
+    flightNums = IntBuffer.wrap(Arrays.copyOf(flightNums.array(), capacity));
+    origins = IntBuffer.wrap(Arrays.copyOf(origins.array(), capacity));
+    dests = IntBuffer.wrap(Arrays.copyOf(dests.array(), capacity));
+    durations = IntBuffer.wrap(Arrays.copyOf(durations.array(), capacity));
+    capacities = IntBuffer.wrap(Arrays.copyOf(capacities.array(), capacity));
+    prices = IntBuffer.wrap(Arrays.copyOf(prices.array(), capacity));
+  }
+}
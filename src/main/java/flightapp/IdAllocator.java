@@ -0,0 +1,82 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out unique ids backed by a database sequence, using the hi/lo scheme.
+ *
+ * Each value the sequence returns is a "hi" that reserves the next blockSize ids for this
+ * JVM: hi h owns ids (h - 1) * blockSize + 1 through h * blockSize.  Ids within a block are
+ * handed out by an AtomicLong without locking or going to the database, so only one
+ * allocation in blockSize costs a round trip.  Ids are unique across JVMs sharing the
+ * sequence, and increase by 1 within a JVM, as long as every JVM uses the same blockSize.
+ */
+public class IdAllocator {
+  private final String sequence;
+  private final int blockSize;
+
+  // Replaced wholesale when it runs out, so a reader never sees a half-updated block; starts
+  // out empty
+  private volatile Block block = new Block(1, 0);
+
+  /**
+   * Creates an allocator over the named sequence, reserving blockSize ids at a time
+   */
+  public IdAllocator(String sequence, int blockSize) {
+    if (blockSize <= 0) throw new IllegalArgumentException("blockSize must be positive");
+    this.sequence = sequence;
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Returns the next id, reserving a new block over conn if this JVM's current one has run out.
+   * Uses of the sequence aren't rolled back, so this is safe to call inside a transaction.
+   */
+  public long nextId(Connection conn) throws SQLException {
+    while (true) {
+      Block current = block;
+      long id = current.next.getAndIncrement();
+      if (id <= current.last) return id;
+      refill(conn, current);
+    }
+  }
+
+  /**
+   * Restarts the sequence, so the next id handed out by any JVM is 1 again.  Blocks other JVMs
+   * have already reserved are not affected.
+   */
+  public synchronized void reset(Connection conn) throws SQLException {
+    Statement stmt = conn.createStatement();
+    stmt.executeUpdate("ALTER SEQUENCE " + sequence + " RESTART WITH 1");
+    stmt.close();
+    block = new Block(1, 0);
+  }
+
+  // Reserves a new block, unless another thread already replaced exhausted
+  private synchronized void refill(Connection conn, Block exhausted) throws SQLException {
+    if (block != exhausted) return;
+
+    Statement stmt = conn.createStatement();
+    ResultSet rs = stmt.executeQuery("SELECT nextval('" + sequence + "') AS hi");
+    rs.next();
+    long hi = rs.getLong("hi");
+    rs.close();
+    stmt.close();
+    block = new Block((hi - 1) * blockSize + 1, hi * blockSize);
+  }
+
+  // Ids first through last, of which next is the first not yet handed out
+  private static class Block {
+    final AtomicLong next;
+    final long last;
+
+    Block(long first, long last) {
+      this.next = new AtomicLong(first);
+      this.last = last;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.*;
+
+/**
+ * Runs periodic background jobs, such as SeatLedger reconciliation, and one-off ones, such as
+ * password rehashes, on a single daemon thread shared by the whole JVM.
+ *
+ * Each job gets its own database connection, opened on its first run and reopened after a
+ * failure, so jobs never share a connection (or a transaction) with a user's session.  A job
+ * that throws is logged and run again at its next period.
+ */
+public class MaintenanceScheduler {
+  /**
+   * A job to run in the background
+   */
+  public interface Job {
+    void run(Connection conn) throws SQLException;
+  }
+
+  private static MaintenanceScheduler instance = null;
+
+  private final ScheduledExecutorService executor;
+
+  /**
+   * Returns the JVM-wide scheduler, starting it on first use
+   */
+  public static synchronized MaintenanceScheduler getInstance() {
+    if (instance == null) {
+      instance = new MaintenanceScheduler();
+    }
+    return instance;
+  }
+
+  private MaintenanceScheduler() {
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "flightapp-maintenance");
+      thread.setDaemon(true);  // doesn't keep the app from exiting
+      return thread;
+    });
+  }
+
+  /**
+   * Runs job every periodSecs seconds, starting periodSecs from now
+   */
+  public void schedule(String name, long periodSecs, Job job) {
+    JobConnection jobConn = new JobConnection();
+    executor.scheduleWithFixedDelay(() -> jobConn.run(name, job), periodSecs, periodSecs, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Runs job once, as soon as the maintenance thread is free.  One-off jobs share a connection
+   * of their own; one that throws is logged and not retried.
+   */
+  public void runOnce(String name, Job job) {
+    executor.execute(() -> oneOffConn.run(name, job));
+  }
+
+  /**
+   * Runs sql, which takes a batch size as its only parameter and returns one row whose first
+   * column is how many rows it handled, batchSize at a time until a batch comes up short, over
+   * conn (which must be in auto-commit mode, so each batch is its own transaction).  Returns
+   * how many were handled in all.  Jobs that fold or release rows in bulk use it so none of
+   * their transactions gets long.
+   */
+  public static int runInBatches(Connection conn, String sql, int batchSize) throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(sql);
+    int total = 0;
+    while (true) {
+      stmt.clearParameters();
+      stmt.setInt(1, batchSize);
+      ResultSet rs = stmt.executeQuery();
+      rs.next();
+      int handled = rs.getInt(1);
+      rs.close();
+      total += handled;
+      if (handled < batchSize) break;
+    }
+    stmt.close();
+    return total;
+  }
+
+  // Only used on the maintenance thread
+  private final JobConnection oneOffConn = new JobConnection();
+
+  // A connection for running jobs on, opened on first use and reopened after a failure
+  private static class JobConnection {
+    private Connection conn = null;
+
+    void run(String name, Job job) {
+      try {
+        if (conn == null) {
+          conn = DBConnUtils.openConnection();
+        }
+        job.run(conn);
+      } catch (SQLException | IOException | RuntimeException e) {
+        System.err.println("Maintenance job " + name + " failed");
+        e.printStackTrace();
+        closeQuietly();
+      }
+    }
+
+    // Drops the connection, which may be broken, so the next run opens a new one
+    private void closeQuietly() {
+      try {
+        if (conn != null) conn.close();
+      } catch (SQLException e) {
+        // already failing
+      }
+      conn = null;
+    }
+  }
+}
@@ -1,5 +1,8 @@
 package flightapp;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.KeySpec;
@@ -9,6 +12,10 @@ import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -16,60 +23,162 @@ import javax.crypto.spec.PBEKeySpec;
 
 /**
  * A collection of utility methods to help with managing passwords
+ *
+ * Hashing a password is deliberately slow, so it runs on a small pool of its own rather than on
+ * the caller's thread: a burst of logins queues up there instead of taking every core from
+ * searches and bookings.  The pool has flightapp.hash_threads threads (default half the
+ * cores) and queues at most flightapp.hash_queue more hashes (default as many as the threads
+ * can get through in flightapp.hash_timeout_ms, timing one hash when the pool starts).  A hash
+ * that can't be queued fails at once; one that doesn't start within flightapp.hash_timeout_ms
+ * (default 5000), or, once started, isn't done within another, fails with an
+ * IllegalStateException and is cancelled.
+ *
+ * Hashes are self-describing: a format version, the algorithm, the iteration count, and the
+ * salt length, followed by the salt and the hash, so flightapp.hash_algorithm and
+ * flightapp.hash_iterations can be changed without invalidating stored passwords.  Hashes
+ * from before there was a format (a 16-byte salt and a PBKDF2WithHmacSHA1 hash of 65536
+ * iterations) are still recognized.  needsRehash says when a stored hash was made with other
+ * settings than the current ones, so it can be replaced at the user's next login.
+ *
+ * All of these settings are read, and checked, only once: by start, when the app starts, or
+ * else when a password is first hashed.
  */
 public class PasswordUtils {
   /**
    * Generates a cryptographically-secure salted password.
    */
   public static byte[] saltAndHashPassword(String password) {
+    return onHashPool(() -> makeSaltedHash(password));
+  }
+
+  /**
+   * Like saltAndHashPassword, but returns at once, with a future that's completed on the
+   * hashing pool.
+   */
+  public static CompletableFuture<byte[]> saltAndHashPasswordAsync(String password) {
+    return submit(() -> makeSaltedHash(password)).result;
+  }
+
+  /**
+   * Returns true if saltedHashed wasn't made with the current algorithm and iteration count
+   * (or in the current format), so it should be replaced by a new saltAndHashPassword the
+   * next time the plaintext is known to match it.
+   */
+  public static boolean needsRehash(byte[] saltedHashed) {
+    if (isLegacy(saltedHashed) || saltedHashed.length < HEADER_BYTES) return true;
+    ByteBuffer header = ByteBuffer.wrap(saltedHashed);
+    if (hashAlgorithm == null) getHashExecutor();  // reads the settings
+    return header.get() != FORMAT_VERSION || header.get() != algorithmId(hashAlgorithm)
+        || header.getInt() != hashIterations;
+  }
+
+  // Returns a new salted hash of password, in the current format, on the calling thread
+  private static byte[] makeSaltedHash(String password) {
+    String algorithm = hashAlgorithm;
+    int iterations = hashIterations;
     byte[] salt = generateSalt();
-    byte[] saltedHash = hashWithSalt(password, salt);
+    byte[] saltedHash = hashWithSalt(algorithm, iterations, password, salt);
 
-    // TODO: combine the salt and the salted hash into a single byte array that
-    // can be written to the database
-    byte[] saltAndHash = new byte[SALT_LENGTH_BYTES + KEY_LENGTH_BYTES];
-    for (int i = 0; i < SALT_LENGTH_BYTES; i++) {
-      saltAndHash[i] = salt[i];
-    }
-    for (int i = 0; i < KEY_LENGTH_BYTES; i++) {
-      saltAndHash[SALT_LENGTH_BYTES + i] = saltedHash[i];
-    }
-    return saltAndHash;
+    ByteBuffer saltAndHash = ByteBuffer.allocate(HEADER_BYTES + salt.length + saltedHash.length);
+    saltAndHash.put(FORMAT_VERSION);
+    saltAndHash.put(algorithmId(algorithm));
+    saltAndHash.putInt(iterations);
+    saltAndHash.put((byte) salt.length);
+    saltAndHash.put(salt);
+    saltAndHash.put(saltedHash);
+    return saltAndHash.array();
   }
 
   /**
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
-    // TODO: extract the salt from the byte array (ie, undo the logic you implemented in 
-    // saltAndHashPassword), then use it to check whether the user-provided plaintext
-    // password matches the password hash.
-    byte[] extractedSalt = new byte[SALT_LENGTH_BYTES];
-    for (int i = 0; i < SALT_LENGTH_BYTES; i++) {
-      extractedSalt[i] = saltedHashed[i];
+    return onHashPool(() -> matches(plaintext, saltedHashed));
+  }
+
+  /**
+   * Like plaintextMatchesSaltedHash, but returns at once, with a future that's completed on
+   * the hashing pool; it fails with an IllegalStateException if the hash can't be queued, or
+   * with a TimeoutException if it isn't done in time.  A server can park a login on it
+   * without tying up a thread.
+   */
+  public static CompletableFuture<Boolean> plaintextMatchesSaltedHashAsync(String plaintext,
+                                                                           byte[] saltedHashed) {
+    return submit(() -> matches(plaintext, saltedHashed)).result;
+  }
+
+  // Returns true if plaintext hashes to saltedHashed, in either format, on the calling thread
+  private static boolean matches(String plaintext, byte[] saltedHashed) {
+    if (isLegacy(saltedHashed)) {
+      byte[] extractedSalt = Arrays.copyOfRange(saltedHashed, 0, SALT_LENGTH_BYTES);
+      byte[] extractedHash = Arrays.copyOfRange(saltedHashed, SALT_LENGTH_BYTES, saltedHashed.length);
+      return MessageDigest.isEqual(hashWithSalt(plaintext, extractedSalt), extractedHash);
     }
-    byte[] extractedHash = new byte[KEY_LENGTH_BYTES];
-    for (int i = 0; i < KEY_LENGTH_BYTES; i++) {
-      extractedHash[i] = saltedHashed[SALT_LENGTH_BYTES + i];
+
+    if (saltedHashed.length < HEADER_BYTES) return false;
+    ByteBuffer buf = ByteBuffer.wrap(saltedHashed);
+    byte version = buf.get();
+    String algorithm = algorithmNamed(buf.get());
+    int iterations = buf.getInt();
+    int saltLength = buf.get() & 0xff;
+    if (version != FORMAT_VERSION || algorithm == null || iterations <= 0 || buf.remaining() <= saltLength) {
+      return false;  // not a hash this version can check
     }
+    byte[] extractedSalt = new byte[saltLength];
+    buf.get(extractedSalt);
+    byte[] extractedHash = new byte[buf.remaining()];
+    buf.get(extractedHash);
+
+    byte[] madeSaltedHash = hashWithSalt(algorithm, iterations, plaintext, extractedSalt);
+    return MessageDigest.isEqual(madeSaltedHash, extractedHash);
+  }
 
-    byte[] madeSaltedHash = hashWithSalt(plaintext, extractedSalt);
-    return Arrays.equals(madeSaltedHash, extractedHash);
+  // Returns true if saltedHashed is from before hashes had a format: just a salt and a hash
+  // (no formatted hash is that long, since their salts are SALT_LENGTH_BYTES too)
+  private static boolean isLegacy(byte[] saltedHashed) {
+    return saltedHashed.length == SALT_LENGTH_BYTES + KEY_LENGTH_BYTES;
   }
-  
+
   // Password hashing parameter constants.
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH_BYTES = 128;
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Formatted hashes start with FORMAT_VERSION, the algorithm's id (its index in ALGORITHMS),
+  // the iteration count, and the salt length
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_BYTES = 1 + 1 + 4 + 1;
+  private static final String[] ALGORITHMS = {"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256",
+                                              "PBKDF2WithHmacSHA512"};
+  private static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+  // What new hashes are made with, set by flightapp.hash_algorithm (one of ALGORITHMS,
+  // default PBKDF2WithHmacSHA1) and flightapp.hash_iterations (default HASH_STRENGTH)
+  private static final String HASH_ALGORITHM_PROPERTY = "flightapp.hash_algorithm";
+  private static final String HASH_ITERATIONS_PROPERTY = "flightapp.hash_iterations";
+  private static volatile String hashAlgorithm = null;
+  private static volatile int hashIterations;
+
+  // Hashing pool settings (see the class comment)
+  private static final String HASH_THREADS_PROPERTY = "flightapp.hash_threads";
+  private static final String HASH_QUEUE_PROPERTY = "flightapp.hash_queue";
+  private static final String HASH_TIMEOUT_PROPERTY = "flightapp.hash_timeout_ms";
+  private static volatile ThreadPoolExecutor hashExecutor = null;
+  private static ScheduledThreadPoolExecutor hashDeadlines;  // times hashes out
+  private static volatile long hashTimeoutMillis;
+
+  // Looking up a SecretKeyFactory and seeding a SecureRandom are costly, and factories aren't
+  // thread-safe, so each thread (in practice, each hashing pool thread) keeps its own, one
+  // factory per algorithm
+  private static final ThreadLocal<Map<String, SecretKeyFactory>> FACTORIES = ThreadLocal.withInitial(HashMap::new);
+  private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
   static byte[] generateSalt() {
-    // TODO: implement this.
     byte[] salt = new byte[SALT_LENGTH_BYTES];
-    SecureRandom random = new SecureRandom();
-    random.nextBytes(salt);
+    RANDOM.get().nextBytes(salt);
     return salt;
   }
 
@@ -78,21 +187,198 @@ public class PasswordUtils {
    * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
    */
   static byte[] hashWithSalt(String password, byte[] salt)
+    throws IllegalStateException {
+    return hashWithSalt(LEGACY_ALGORITHM, HASH_STRENGTH, password, salt);
+  }
+
+  /**
+   * Like hashWithSalt(password, salt), but with the given algorithm and iteration count
+   */
+  static byte[] hashWithSalt(String algorithm, int iterations, String password, byte[] salt)
     throws IllegalStateException {
     // Specify the hash parameters, including the salt
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
-                                  HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
+                                  iterations, KEY_LENGTH_BYTES * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
+      SecretKeyFactory factory = FACTORIES.get().get(algorithm);
+      if (factory == null) {
+        factory = SecretKeyFactory.getInstance(algorithm);
+        FACTORIES.get().put(algorithm, factory);
+      }
+      return factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-      throw new IllegalStateException();
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  // Returns the id recorded in hashes made with algorithm
+  private static byte algorithmId(String algorithm) {
+    for (int id = 0; id < ALGORITHMS.length; id++) {
+      if (ALGORITHMS[id].equals(algorithm)) return (byte) id;
+    }
+    throw new IllegalArgumentException("Unknown " + HASH_ALGORITHM_PROPERTY + ": " + algorithm);
+  }
+
+  // Returns the algorithm with the given id, or null if there isn't one
+  private static String algorithmNamed(byte id) {
+    return (id >= 0 && id < ALGORITHMS.length) ? ALGORITHMS[id] : null;
+  }
+
+  // Runs task on the hashing pool and waits for its result
+  private static <T> T onHashPool(Callable<T> task) {
+    HashTask<T> hashTask = submit(task);
+    try {
+      return hashTask.result.get();
+    } catch (InterruptedException e) {
+      hashTask.expire(new CancellationException());
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while hashing a password", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        throw new IllegalStateException("Password hashing timed out", e.getCause());
+      }
+      if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  // Queues task on the hashing pool; if it can't be, its result has already failed
+  private static <T> HashTask<T> submit(Callable<T> task) {
+    ThreadPoolExecutor executor = getHashExecutor();
+    HashTask<T> hashTask = new HashTask<>(task, executor);
+    try {
+      executor.execute(hashTask);
+    } catch (RejectedExecutionException e) {
+      hashTask.result.completeExceptionally(new IllegalStateException("Too many passwords waiting to be hashed", e));
+      hashTask.cancel(false);  // and its start deadline
+    }
+    return hashTask;
+  }
+
+  /**
+   * A hash on the pool, whose result fails with a TimeoutException if it doesn't start within
+   * hashTimeoutMillis or, once started, finish within another.  Either way it's cancelled: taken
+   * off the queue if it's still there, or interrupted if it's running (which a PBKDF2 hash
+   * doesn't check for, so it runs out, but nobody waits on it any longer).  Only one deadline
+   * is pending at a time, and it's cancelled once the hash is done, so finished hashes don't
+   * linger in the timer's queue.
+   */
+  private static class HashTask<T> extends FutureTask<T> {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    private final ThreadPoolExecutor executor;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile ScheduledFuture<?> deadline;
+
+    HashTask(Callable<T> task, ThreadPoolExecutor executor) {
+      super(task);
+      this.executor = executor;
+      // set before the task is queued, so run can't have replaced it already
+      deadline = expireAfter(new TimeoutException("Password hashing didn't start in time"), false);
+    }
+
+    @Override
+    public void run() {
+      if (!started.compareAndSet(false, true)) return;  // its start deadline passed
+      deadline.cancel(false);
+      deadline = expireAfter(new TimeoutException("Password hashing timed out"), true);
+      super.run();
+    }
+
+    @Override
+    protected void done() {
+      deadline.cancel(false);
+      try {
+        result.complete(get());
+      } catch (ExecutionException e) {
+        result.completeExceptionally(e.getCause());
+      } catch (CancellationException | InterruptedException e) {
+        result.cancel(false);  // a no-op if whoever cancelled it failed the result first
+      }
     }
+
+    // Fails the result with e after hashTimeoutMillis, unless it's done by then or (if
+    // !ifStarted) has started
+    private ScheduledFuture<?> expireAfter(Exception e, boolean ifStarted) {
+      return hashDeadlines.schedule(() -> {
+        if (ifStarted || started.compareAndSet(false, true)) expire(e);
+      }, hashTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Fails the result with e, unless it's already done, and cancels the hash
+    void expire(Exception e) {
+      if (result.completeExceptionally(e)) {
+        cancel(true);
+        executor.remove(this);
+      }
+    }
+  }
+
+  /**
+   * Reads and checks the hashing settings and starts the hashing pool, unless that's been done
+   * already.  Throws IllegalArgumentException if a setting isn't valid, so calling it when the
+   * app starts keeps a bad setting from failing logins later.
+   */
+  public static synchronized void start() throws IOException {
+    if (hashExecutor != null) return;
+
+    String algorithm = DBConnUtils.getProperty(HASH_ALGORITHM_PROPERTY, LEGACY_ALGORITHM);
+    algorithmId(algorithm);  // checks it's one we can record
+    int iterations = Integer.parseInt(DBConnUtils.getProperty(HASH_ITERATIONS_PROPERTY, "" + HASH_STRENGTH));
+    if (iterations < 1) {
+      throw new IllegalArgumentException(HASH_ITERATIONS_PROPERTY + " must be positive: " + iterations);
+    }
+
+    int defaultThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    int threads = Integer.parseInt(DBConnUtils.getProperty(HASH_THREADS_PROPERTY, "" + defaultThreads));
+    long timeoutMillis = Long.parseLong(DBConnUtils.getProperty(HASH_TIMEOUT_PROPERTY, "5000"));
+    if (threads < 1 || timeoutMillis < 1) {
+      throw new IllegalArgumentException(HASH_THREADS_PROPERTY + " and " + HASH_TIMEOUT_PROPERTY + " must be positive");
+    }
+    String queueSetting = DBConnUtils.getProperty(HASH_QUEUE_PROPERTY, "");
+    int queue = queueSetting.isEmpty() ? defaultQueue(algorithm, iterations, threads, timeoutMillis)
+                                       : Integer.parseInt(queueSetting);
+    if (queue < 1) throw new IllegalArgumentException(HASH_QUEUE_PROPERTY + " must be positive: " + queue);
+
+    hashAlgorithm = algorithm;
+    hashIterations = iterations;
+    hashTimeoutMillis = timeoutMillis;
+    hashDeadlines = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "flightapp-hashing-deadlines");
+      thread.setDaemon(true);
+      return thread;
+    });
+    hashDeadlines.setRemoveOnCancelPolicy(true);  // so cancelled deadlines don't pile up
+    hashExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<>(queue), runnable -> {
+      Thread thread = new Thread(runnable, "flightapp-hashing");
+      thread.setDaemon(true);  // doesn't keep the app from exiting
+      return thread;
+    });
+  }
+
+  // Returns the JVM-wide hashing pool, starting it on first use
+  private static ThreadPoolExecutor getHashExecutor() {
+    ThreadPoolExecutor executor = hashExecutor;
+    if (executor == null) {
+      try {
+        start();
+      } catch (IOException e) {
+        throw new IllegalStateException("Can't read the password hashing settings", e);
+      }
+      executor = hashExecutor;
+    }
+    return executor;
+  }
+
+  // Returns how many hashes threads threads can get through in timeoutMillis (at least one
+  // each), timing one with the given settings, so a queued hash can start before it times out
+  private static int defaultQueue(String algorithm, int iterations, int threads, long timeoutMillis) {
+    long start = System.nanoTime();
+    hashWithSalt(algorithm, iterations, "calibration", generateSalt());
+    long hashMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return (int) Math.min(Integer.MAX_VALUE, threads * Math.max(1, timeoutMillis / hashMillis));
   }
 
 }
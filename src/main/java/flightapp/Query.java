@@ -1,11 +1,14 @@
 package flightapp;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.*;
+import java.util.function.IntFunction;
 import java.sql.Types;
 import java.sql.*;
 
@@ -16,80 +19,416 @@ public class Query extends QueryAbstract {
   //
   // Canned queries
   //
-  private static final String FLIGHT_CAPACITY_SQL = "SELECT num_seats " +
-                                                    "FROM N_Numbers AS N, Aircraft_Types AS A " +
-                                                    "WHERE N.mfr_mdl_code = A.atid AND N.n_number = ?";
-  private PreparedStatement flightCapacityStmt;
-
   private static final String GET_USER_SQL = "SELECT * FROM User_cartierc WHERE username = ?";
   private PreparedStatement getUserStmt;
 
+  // Whether any flight touches a city
+  private static final String CITY_SQL = "SELECT 1 FROM Flights WHERE origin_city = ? OR dest_city = ? LIMIT 1";
+  private PreparedStatement cityStmt;
+
   private static final String INSERT_USER_SQL = "INSERT INTO User_cartierc VALUES (?, ?, ?)";
   private PreparedStatement insertUserStmt;
 
+  // Replaces a user's password hash, unless it changed since it was read; run in the
+  // background, on the maintenance connection
+  private static final String REHASH_SQL = "UPDATE User_cartierc SET password = ? WHERE username = ? AND password = ?";
+
+  // Cities aren't selected since they're the search's own origin and destination
+  // Takes a range of days, which is a single day for ordinary searches
   private static final String DIRECT_SQL = "SELECT fid, day_of_month, cid, tail_num, op_carrier_flight_num, " +
-                                           "origin_city, dest_city, duration_mins, price " +
+                                           "duration_mins, price " +
                                            "FROM Flights " +
-                                           "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND cancelled = 0";
+                                           "WHERE origin_city = ? AND dest_city = ? AND day_of_month BETWEEN ? AND ? AND cancelled = 0";
   private PreparedStatement directStmt;
 
+  // The only city selected is the connecting one; the others are the search's own
   private static final String INDIRECT_SQL = "SELECT F1.fid AS f1Id, F1.day_of_month AS f1Day, F1.cid as f1Carrier, " +
-                                             "F1.tail_num AS f1TailNum, F1.op_carrier_flight_num AS f1FNum, F1.origin_city AS f1Origin, " +
+                                             "F1.tail_num AS f1TailNum, F1.op_carrier_flight_num AS f1FNum, " +
                                              "F1.dest_city AS f1Dest, F1.duration_mins AS f1Tm, F1.price AS f1Pri, " +
                                              "F2.fid AS f2Id, F2.day_of_month AS f2Day, F2.cid as f2Carrier, " +
-                                             "F2.tail_num AS f2TailNum, F2.op_carrier_flight_num AS f2FNum, F2.origin_city AS f2Origin, " +
-                                             "F2.dest_city AS f2Dest, F2.duration_mins AS f2Tm, F2.price AS f2Pri " + 
+                                             "F2.tail_num AS f2TailNum, F2.op_carrier_flight_num AS f2FNum, " +
+                                             "F2.duration_mins AS f2Tm, F2.price AS f2Pri " + 
                                              "FROM Flights F1, Flights F2 WHERE F1.dest_city = F2.origin_city AND F1.fid != F2.fid " +
-                                             "AND F1.origin_city = ? AND F2.dest_city = ? AND F1.day_of_month = ? AND F2.day_of_month = ? " + 
+                                             "AND F1.origin_city = ? AND F2.dest_city = ? AND F1.day_of_month BETWEEN ? AND ? " +
+                                             "AND F2.day_of_month = F1.day_of_month " +
                                              "AND F1.cancelled = 0 AND F2.cancelled = 0";
   private PreparedStatement indirectStmt;
-
-  private static final String NUM_BOOKED_ON_SQL = "SELECT COUNT(*) AS count " +
-                                                  "FROM Reservation_cartierc AS R, Flights AS F " +
-                                                  "WHERE R.f1id = F.fid AND F.day_of_month = ? AND username = ?";
-  private PreparedStatement numBookedOnStmt;
-
-  private static final String NUM_RESERVED_ON_F1_SQL = "SELECT COUNT(*) AS count FROM Reservation_cartierc WHERE f1id = ?";
-  private PreparedStatement numReservedOnF1Stmt;
-
-  private static final String NUM_RESERVED_ON_F2_SQL = "SELECT COUNT(*) AS count FROM Reservation_cartierc WHERE f2id = ?";
-  private PreparedStatement numReservedOnF2Stmt;
-
-  private static final String INSERT_RES_SQL = "INSERT INTO Reservation_cartierc VALUES (?, ?, ?, ?, ?)";
+  private static final int INDIRECT_FETCH_SIZE = 1000;  // rows fetched per round trip
+
+  // Direct and one-stop itineraries ranked in a single statement. The inner ORDER BY puts
+  // directs ahead of indirects so that LIMIT keeps the same rows fillItineraryList would; the
+  // outer ORDER BY then matches Itinerary.compareTo
+  private static final String TOP_ITINERARIES_SQL = "SELECT * FROM (" +
+                                                    "SELECT 1 AS numFlights, F.duration_mins AS totalTime, " +
+                                                    "F.fid AS f1Id, F.day_of_month AS f1Day, F.cid AS f1Carrier, " +
+                                                    "F.op_carrier_flight_num AS f1FNum, " +
+                                                    "F.dest_city AS f1Dest, F.duration_mins AS f1Tm, F.price AS f1Pri, " +
+                                                    "COALESCE(A.num_seats, -1) AS f1Cap, " +
+                                                    "NULL::INT AS f2Id, NULL::INT AS f2Day, NULL::VARCHAR AS f2Carrier, " +
+                                                    "NULL::INT AS f2FNum, NULL::INT AS f2Tm, NULL::INT AS f2Pri, NULL::INT AS f2Cap " +
+                                                    "FROM Flights AS F " +
+                                                    "LEFT JOIN N_Numbers AS N ON N.n_number = F.tail_num " +
+                                                    "LEFT JOIN Aircraft_Types AS A ON N.mfr_mdl_code = A.atid " +
+                                                    "WHERE F.origin_city = ? AND F.dest_city = ? AND F.day_of_month BETWEEN ? AND ? AND F.cancelled = 0 " +
+                                                    "UNION ALL " +
+                                                    "SELECT 2, F1.duration_mins + F2.duration_mins, " +
+                                                    "F1.fid, F1.day_of_month, F1.cid, F1.op_carrier_flight_num, " +
+                                                    "F1.dest_city, F1.duration_mins, F1.price, COALESCE(A1.num_seats, -1), " +
+                                                    "F2.fid, F2.day_of_month, F2.cid, F2.op_carrier_flight_num, " +
+                                                    "F2.duration_mins, F2.price, COALESCE(A2.num_seats, -1) " +
+                                                    "FROM Flights AS F1 JOIN Flights AS F2 ON F1.dest_city = F2.origin_city AND F1.fid != F2.fid " +
+                                                    "LEFT JOIN N_Numbers AS N1 ON N1.n_number = F1.tail_num " +
+                                                    "LEFT JOIN Aircraft_Types AS A1 ON N1.mfr_mdl_code = A1.atid " +
+                                                    "LEFT JOIN N_Numbers AS N2 ON N2.n_number = F2.tail_num " +
+                                                    "LEFT JOIN Aircraft_Types AS A2 ON N2.mfr_mdl_code = A2.atid " +
+                                                    "WHERE F1.origin_city = ? AND F2.dest_city = ? AND F1.day_of_month BETWEEN ? AND ? " +
+                                                    "AND F2.day_of_month = F1.day_of_month " +
+                                                    "AND F1.cancelled = 0 AND F2.cancelled = 0 AND ? " +
+                                                    "ORDER BY numFlights, totalTime, f1Id, f2Id " +
+                                                    "LIMIT ?) AS Ranked " +
+                                                    "ORDER BY totalTime, f1Id, f2Id NULLS FIRST";
+  private PreparedStatement topItinerariesStmt;
+
+  // A single probe of the (username, travelDay) unique index, whatever the user's history
+  private static final String BOOKED_ON_SQL = "SELECT 1 FROM Reservation_cartierc WHERE username = ? AND travelDay = ?";
+  private PreparedStatement bookedOnStmt;
+
+  // Takes some of a flight's remaining seats, updating nothing if there aren't that many left
+  // (or the flight has no Seats_cartierc row yet)
+  private static final String RESERVE_SEAT_SQL = "UPDATE Seats_cartierc SET remaining = remaining - ? " +
+                                                 "WHERE fid = ? AND remaining >= ?";
+  private PreparedStatement reserveSeatStmt;
+
+  // Creates a flight's Seats_cartierc row, from its capacity less any reservations made before
+  // the row existed; inserts nothing if another booking already created it, waiting for one
+  // that's creating it to commit, and skips counting reservations if the row is already there
+  private static final String INIT_SEATS_SQL = "INSERT INTO Seats_cartierc " +
+                                               "SELECT ?, ? - (SELECT COALESCE(SUM(seats), 0) FROM Reservation_cartierc WHERE f1id = ? OR f2id = ?) " +
+                                               "- (SELECT COALESCE(SUM(R.seats), 0) FROM ReservationLeg_cartierc AS L, Reservation_cartierc AS R " +
+                                               "WHERE L.rid = R.rid AND L.fid = ?) " +
+                                               "WHERE NOT EXISTS (SELECT 1 FROM Seats_cartierc WHERE fid = ?) " +
+                                               "ON CONFLICT (fid) DO NOTHING";
+  private PreparedStatement initSeatsStmt;
+
+  private static final String SEATS_REMAINING_SQL = "SELECT remaining FROM Seats_cartierc WHERE fid = ?";
+  private PreparedStatement seatsRemainingStmt;
+
+  // Held until the booking transaction ends; the first key keeps flight locks apart from any
+  // other advisory locks on the database
+  private static final String LOCK_FLIGHT_SQL = "SELECT pg_advisory_xact_lock(1, ?)";
+  private PreparedStatement lockFlightStmt;
+
+  private static final String INSERT_RES_SQL = "INSERT INTO Reservation_cartierc VALUES (?, ?, ?, ?, ?, ?, ?, now() + make_interval(secs => ?))";
   private PreparedStatement insertResStmt;
 
-  private static final String NUM_RES_SQL = "SELECT COUNT(*) AS count FROM Reservation_cartierc";
-  private PreparedStatement numResStmt;
-
-  private static final String GET_RES_SQL = "SELECT * FROM Reservation_cartierc WHERE rid = ?";
-  private PreparedStatement getResStmt;
-
-  private static final String FLIGHT_PRICE_SQL = "SELECT price FROM Flights WHERE fid = ?";
-  private PreparedStatement flightPriceStmt;
-
-  private static final String PAY_RES_SQL = "UPDATE Reservation_cartierc SET isPaidFor = 1 WHERE rid = ?";
-  private PreparedStatement payResStmt;
-
-  private static final String LOWER_BAL_SQL = "UPDATE User_cartierc SET balance = balance - ? WHERE username = ?";
-  private PreparedStatement lowerBalStmt;
-
-  private static final String GET_RES_FOR_SQL = "SELECT * FROM Reservation_cartierc WHERE username = ? ORDER BY rid";
+  // Flights after the 2nd of a reservation; the first two are its f1id and f2id
+  private static final String INSERT_RES_LEG_SQL = "INSERT INTO ReservationLeg_cartierc VALUES (?, ?, ?)";
+  private PreparedStatement insertResLegStmt;
+
+  // Prices a set of reservations (every unpaid one, or those in an array) that are the user's,
+  // unpaid, and not expired holds (each costs every flight, times its seats), and if all of
+  // the ones asked for were found, holds their total cost against the user's balance with a
+  // pending delta in the balance ledger.  Returns each one found, by rid, with its cost and
+  // the hold's id (NULL if there's no hold)
+  private static final String HOLD_COST_SQL = "WITH Res AS (SELECT rid, f1id, f2id, seats FROM Reservation_cartierc " +
+                                              "WHERE username = ? AND isPaidFor = 0 AND (holdExpires IS NULL OR holdExpires >= now()) " +
+                                              "AND (? OR rid = ANY(?))), " +
+                                              "Cost AS (SELECT R.rid, R.seats * ((SELECT price FROM Flights WHERE fid = R.f1id) " +
+                                              "+ COALESCE((SELECT price FROM Flights WHERE fid = R.f2id), 0) " +
+                                              "+ (SELECT COALESCE(SUM(F.price), 0) FROM ReservationLeg_cartierc AS L, Flights AS F " +
+                                              "WHERE L.rid = R.rid AND F.fid = L.fid)) AS cost FROM Res AS R), " +
+                                              "Total AS (SELECT COALESCE(SUM(cost), 0) AS cost, COUNT(*) AS found FROM Cost), " +
+                                              "Held AS (INSERT INTO BalanceLedger_cartierc (username, delta, pending) " +
+                                              "SELECT ?, -cost, TRUE FROM Total WHERE found > 0 AND (? OR found = ?) RETURNING id) " +
+                                              "SELECT C.rid, C.cost, (SELECT id FROM Held) AS holdId FROM Cost AS C ORDER BY C.rid";
+  private PreparedStatement holdCostStmt;
+
+  // Marks an array of the user's reservations paid and settles the hold on their cost, only if
+  // they're all still unpaid and not expired, the hold hasn't been withdrawn, and the balance
+  // covers it even if every other pending hold on it is settled too; recording the change in
+  // ResChanges_cartierc.  Returns the settled balance (the user's row's plus their settled
+  // deltas, before this payment), the other pending holds' total, the hold's cost (NULL if it
+  // was withdrawn), and the user's new resVersion (NULL if nothing was paid for)
+  private static final String SETTLE_SQL = "WITH Res AS (SELECT rid FROM Reservation_cartierc " +
+                                           "WHERE username = ? AND isPaidFor = 0 AND (holdExpires IS NULL OR holdExpires >= now()) " +
+                                           "AND rid = ANY(?) FOR UPDATE), " +
+                                           "Bal AS (SELECT U.balance + COALESCE((SELECT SUM(delta) FROM BalanceLedger_cartierc " +
+                                           "WHERE username = U.username AND NOT pending), 0) AS settled, " +
+                                           "COALESCE((SELECT SUM(delta) FROM BalanceLedger_cartierc " +
+                                           "WHERE username = U.username AND pending AND id <> ?), 0) AS others, " +
+                                           "(SELECT -delta FROM BalanceLedger_cartierc WHERE id = ? AND pending) AS cost " +
+                                           "FROM User_cartierc AS U WHERE U.username = ?), " +
+                                           "Settled AS (UPDATE BalanceLedger_cartierc SET pending = FALSE " +
+                                           "WHERE id = ? AND pending AND (SELECT COUNT(*) FROM Res) = ? " +
+                                           "AND (SELECT settled - cost + others >= 0 FROM Bal) RETURNING id), " +
+                                           "Paid AS (UPDATE Reservation_cartierc AS R SET isPaidFor = 1, holdExpires = NULL " +
+                                           "FROM Res WHERE R.rid = Res.rid AND EXISTS (SELECT 1 FROM Settled) RETURNING R.rid), " +
+                                           "Changed AS (INSERT INTO ResChanges_cartierc (username) " +
+                                           "SELECT ? WHERE EXISTS (SELECT 1 FROM Settled) RETURNING username) " +
+                                           "SELECT B.settled, B.others, B.cost, CASE WHEN EXISTS (SELECT 1 FROM Changed) " +
+                                           "THEN " + versionSql("(SELECT COUNT(*) FROM Changed)") + " END AS resVersion " +
+                                           "FROM Bal AS B, User_cartierc AS U WHERE U.username = ?";
+  private PreparedStatement settleStmt;
+
+  private static final String WITHDRAW_HOLD_SQL = "DELETE FROM BalanceLedger_cartierc WHERE id = ? AND pending";
+  private PreparedStatement withdrawHoldStmt;
+
+  // Held by a payment that found the balance short only because of other payments' pending
+  // holds, until it's done, so such payments go one at a time; keyed on the user's uid, so no
+  // two users share one, and the first key keeps user locks apart from flight locks
+  private static final String LOCK_BALANCE_SQL = "SELECT pg_advisory_lock(2, uid) FROM User_cartierc WHERE username = ?";
+  private PreparedStatement lockBalanceStmt;
+  private static final String UNLOCK_BALANCE_SQL = "SELECT pg_advisory_unlock(2, uid) FROM User_cartierc WHERE username = ?";
+  private PreparedStatement unlockBalanceStmt;
+
+  // Every change to a user's reservations adds to their resVersion (see ReservationView); it
+  // appends a row to ResChanges_cartierc rather than updating the user's, so bookings and
+  // payments don't wait on each other there
+  private static final String BUMP_RES_VERSION_SQL = "WITH Changed AS (INSERT INTO ResChanges_cartierc (username) " +
+                                                     "VALUES (?) RETURNING username) " +
+                                                     "SELECT " + versionSql("1") + " AS resVersion " +
+                                                     "FROM User_cartierc AS U WHERE U.username = ?";
+  private PreparedStatement bumpResVersionStmt;
+
+  private static final String RES_VERSION_SQL = "SELECT " + versionSql("0") + " AS resVersion " +
+                                                "FROM User_cartierc AS U WHERE U.username = ?";
+  private PreparedStatement resVersionStmt;
+
+  // Every flight of a page of a user's reservations (up to a limit of them, with rids after a
+  // given one, found through the (username, rid) index), with its capacity, in one query: a
+  // row for each flight, in order of rid and then of when it's flown
+  private static final String GET_RES_FOR_SQL = "SELECT R.rid, R.isPaidFor, R.seats, R.holdExpires, F.fid, F.day_of_month, F.cid, " +
+                                                "F.op_carrier_flight_num, F.origin_city, F.dest_city, F.duration_mins, " +
+                                                "F.price, COALESCE(A.num_seats, -1) AS capacity " +
+                                                "FROM (SELECT * FROM Reservation_cartierc " +
+                                                "WHERE username = ? AND rid > ? AND (holdExpires IS NULL OR holdExpires >= now()) " +
+                                                "ORDER BY rid LIMIT ?) AS R " +
+                                                "CROSS JOIN LATERAL (SELECT 1 AS legNum, R.f1id AS fid " +
+                                                "UNION ALL SELECT 2, R.f2id WHERE R.f2id IS NOT NULL " +
+                                                "UNION ALL SELECT legNum, fid FROM ReservationLeg_cartierc WHERE rid = R.rid) AS L " +
+                                                "JOIN Flights AS F ON F.fid = L.fid " +
+                                                "LEFT JOIN N_Numbers AS N ON N.n_number = F.tail_num " +
+                                                "LEFT JOIN Aircraft_Types AS A ON N.mfr_mdl_code = A.atid " +
+                                                "ORDER BY R.rid, L.legNum";
   private PreparedStatement getResForStmt;
+  private static final int RES_FETCH_SIZE = 100;  // rows fetched per round trip
 
-  private static final String GET_FLIGHT_SQL = "SELECT fid, day_of_month, cid, tail_num," +
-                                               "op_carrier_flight_num, origin_city, dest_city, duration_mins, price " +
-                                               "FROM Flights WHERE fid = ?";
-  private PreparedStatement getFlightStmt;
+  // Returns an expression for the resVersion of User_cartierc row U: its own, plus its
+  // ResChanges_cartierc rows, plus the given number of rows the statement itself adds (which
+  // it can't see)
+  private static String versionSql(String added) {
+    return "U.resVersion + (SELECT COUNT(*) FROM ResChanges_cartierc WHERE username = U.username) + " + added;
+  }
 
   //
   // Instance variables
   //
   private final int MAX_TRIES = 9;
+  private static final long NO_HOLD = -1;  // balance ledger ids start at 1
+  private static final int PENDING_HOLD_WAIT_MILLIS = 20;
+  private static final int MAX_SEARCH_DAYS = 31;  // longest range searchDays accepts
   private String currUser = null;
+
+  // This session's copy of currUser's reservations, kept up to date by its own bookings and
+  // payments; null until they're next listed
+  private ReservationView reservationView = null;
   private List<Itinerary> itineraries = new ArrayList<>();
 
+  // How searches are answered, set by flightapp.search_mode in dbconn.properties:
+  // "sql" (default) runs the direct and indirect queries and ranks in Java, "combined" ranks
+  // and limits both in one query, and "index" uses the in-memory FlightIndex
+  private static final String SEARCH_MODE_PROPERTY = "flightapp.search_mode";
+  private static final String SQL_SEARCH_MODE = "sql";
+  private static final String COMBINED_SEARCH_MODE = "combined";
+  private static final String INDEX_SEARCH_MODE = "index";
+  private final String searchMode;
+  private FlightIndex flightIndex = null;  // null unless search mode is "index"
+
+  // Most flights an itinerary can have, set by flightapp.max_legs; more than 2 needs "index"
+  // mode, where FlightIndex.forEachPath finds them
+  private static final String MAX_LEGS_PROPERTY = "flightapp.max_legs";
+  private final int maxLegs;
+
+  // In "index" mode, the FlightSnapshot file to map instead of loading Flights, if any
+  private static final String FLIGHT_SNAPSHOT_PROPERTY = "flightapp.flight_snapshot";
+
+  // Seat counts by tail number, shared by every Query in this JVM; loaded on first use, since
+  // searches from a snapshotted index never need it, and refreshed every
+  // flightapp.capacity_refresh_secs (0 never refreshes it) so added aircraft get a capacity.
+  // An index keeps the capacities it was loaded with
+  private static final String CAPACITY_REFRESH_PROPERTY = "flightapp.capacity_refresh_secs";
+  private static boolean capacityRefreshScheduled = false;
+  private CapacityResolver capacityResolver = null;
+
+  // How concurrent bookings are kept from overbooking, set by flightapp.booking_mode:
+  // "retry" (default) relies on row locks and retries transactions that deadlock, and
+  // "advisory" first takes an advisory lock on each of the itinerary's flights, in fid order,
+  // so bookings only ever wait on bookings that share a flight
+  private static final String BOOKING_MODE_PROPERTY = "flightapp.booking_mode";
+  private static final String RETRY_BOOKING_MODE = "retry";
+  private static final String ADVISORY_BOOKING_MODE = "advisory";
+  private final boolean lockFlightsFirst;
+
+  // Seats left on hot flights, checked before booking so sold-out ones cost no SQL; shared by
+  // every Query in this JVM and reconciled every flightapp.seat_ledger_reconcile_secs, if
+  // flightapp.seat_ledger is true
+  private static final String SEAT_LEDGER_PROPERTY = "flightapp.seat_ledger";
+  private static final String SEAT_LEDGER_RECONCILE_PROPERTY = "flightapp.seat_ledger_reconcile_secs";
+  private static SeatLedger sharedSeatLedger = null;
+  private final SeatLedger seatLedger;  // null if disabled
+
+  // Bookings are holds that expire flightapp.hold_ttl_secs after booking unless paid for (0,
+  // the default, never expires them); expired holds are released in the background every
+  // flightapp.hold_expiry_secs, and on demand when they stand in the way of a booking
+  private static final String HOLD_TTL_PROPERTY = "flightapp.hold_ttl_secs";
+  private static final String HOLD_EXPIRY_PROPERTY = "flightapp.hold_expiry_secs";
+  private static final int HOLD_EXPIRY_BATCH_SIZE = 500;
+  private static boolean holdExpiryScheduled = false;
+  private final int holdTtlSecs;
+  private final SeatHolds seatHolds;  // null if holds never expire
+
+  // Payments are appended to BalanceLedger_cartierc, and changes to reservations to
+  // ResChanges_cartierc, and both are folded into User_cartierc in the background every
+  // flightapp.balance_compaction_secs
+  private static final String BALANCE_COMPACTION_PROPERTY = "flightapp.balance_compaction_secs";
+  private static final int BALANCE_COMPACTION_BATCH_SIZE = 1000;
+  private static boolean balanceCompactionScheduled = false;
+
+  // How bookings end, shared by every Query in this JVM
+  private static final BookingStats bookingStats = new BookingStats();
+
+  // Reservation ids, shared by every Query in this JVM, are reserved from the
+  // ReservationIds_cartierc sequence flightapp.rid_block_size at a time
+  private static final String RID_BLOCK_SIZE_PROPERTY = "flightapp.rid_block_size";
+  private static IdAllocator sharedReservationIds = null;
+  private final IdAllocator reservationIds;
+
+  // Search results shared by every Query in this JVM, sized by flightapp.search_cache_size
+  // (default 0, which disables it) and expired after flightapp.search_cache_ttl_secs (0 never
+  // expires).  Nothing tells it when Flights changes, so a cached search can be that stale;
+  // clearTables, and a capacity refresh that changes any, drop every entry
+  private static final String SEARCH_CACHE_SIZE_PROPERTY = "flightapp.search_cache_size";
+  private static final String SEARCH_CACHE_TTL_PROPERTY = "flightapp.search_cache_ttl_secs";
+  private static SearchCache<List<Itinerary>> sharedSearchCache = null;
+  private final SearchCache<List<Itinerary>> searchCache;  // null if disabled
+
   protected Query() throws SQLException, IOException {
     prepareStatements();
+
+    searchMode = DBConnUtils.getProperty(SEARCH_MODE_PROPERTY, SQL_SEARCH_MODE);
+    if (searchMode.equals(INDEX_SEARCH_MODE)) {
+      // a snapshot also fills the Dictionary, so it has to be opened first
+      String snapshot = DBConnUtils.getProperty(FLIGHT_SNAPSHOT_PROPERTY, null);
+      flightIndex = (snapshot == null) ? FlightIndex.getInstance(conn)
+                                       : FlightIndex.getInstance(Paths.get(snapshot));
+      // only this mode looks cities up before searching, so only it needs them all
+      Dictionary.loadFlightNames(conn);
+    } else if (!searchMode.equals(SQL_SEARCH_MODE) && !searchMode.equals(COMBINED_SEARCH_MODE)) {
+      throw new IllegalArgumentException("Unknown " + SEARCH_MODE_PROPERTY + ": " + searchMode);
+    }
+
+    maxLegs = Integer.parseInt(DBConnUtils.getProperty(MAX_LEGS_PROPERTY, "2"));
+    if (maxLegs < 1 || (maxLegs > 2 && flightIndex == null)) {
+      throw new IllegalArgumentException(MAX_LEGS_PROPERTY + " must be 1 or 2, or up to any number with "
+                                         + SEARCH_MODE_PROPERTY + "=" + INDEX_SEARCH_MODE);
+    }
+
+    searchCache = getSearchCache();
+    reservationIds = getReservationIds();
+
+    String bookingMode = DBConnUtils.getProperty(BOOKING_MODE_PROPERTY, RETRY_BOOKING_MODE);
+    if (!bookingMode.equals(RETRY_BOOKING_MODE) && !bookingMode.equals(ADVISORY_BOOKING_MODE)) {
+      throw new IllegalArgumentException("Unknown " + BOOKING_MODE_PROPERTY + ": " + bookingMode);
+    }
+    lockFlightsFirst = bookingMode.equals(ADVISORY_BOOKING_MODE);
+    seatLedger = getSeatLedger();
+
+    holdTtlSecs = Integer.parseInt(DBConnUtils.getProperty(HOLD_TTL_PROPERTY, "0"));
+    seatHolds = (holdTtlSecs > 0) ? new SeatHolds(conn) : null;
+    if (holdTtlSecs > 0) scheduleHoldExpiry();
+    scheduleBalanceCompaction();
+    scheduleCapacityRefresh();
+
+    // so a bad hashing setting fails here, not at the first login or create
+    PasswordUtils.start();
+  }
+
+  // Starts refreshing the shared capacities in the background, unless another Query already did
+  // or it's disabled; search results cached with the old capacities are dropped
+  private static synchronized void scheduleCapacityRefresh() throws IOException {
+    if (capacityRefreshScheduled) return;
+    long refreshSecs = Long.parseLong(DBConnUtils.getProperty(CAPACITY_REFRESH_PROPERTY, "600"));
+    if (refreshSecs <= 0) return;
+    MaintenanceScheduler.getInstance().schedule("capacity refresh", refreshSecs, conn -> {
+      if (CapacityResolver.refreshShared(conn)) invalidateSharedSearchCache();
+    });
+    capacityRefreshScheduled = true;
+  }
+
+  // Drops every search result cached by any Query in this JVM
+  private static synchronized void invalidateSharedSearchCache() {
+    if (sharedSearchCache != null) sharedSearchCache.invalidateAll();
+  }
+
+  // Starts folding the balance ledger and reservation changes into users' rows in the
+  // background, unless another Query already did
+  private static synchronized void scheduleBalanceCompaction() throws IOException {
+    if (balanceCompactionScheduled) return;
+    long compactionSecs = Long.parseLong(DBConnUtils.getProperty(BALANCE_COMPACTION_PROPERTY, "60"));
+    MaintenanceScheduler.getInstance().schedule("balance compaction", compactionSecs, conn -> {
+      BalanceLedger.compact(conn, BALANCE_COMPACTION_BATCH_SIZE);
+      ReservationChanges.compact(conn, BALANCE_COMPACTION_BATCH_SIZE);
+    });
+    balanceCompactionScheduled = true;
+  }
+
+  // Starts releasing expired holds in the background, unless another Query already did
+  private static synchronized void scheduleHoldExpiry() throws IOException {
+    if (holdExpiryScheduled) return;
+    long expirySecs = Long.parseLong(DBConnUtils.getProperty(HOLD_EXPIRY_PROPERTY, "60"));
+    MaintenanceScheduler.getInstance().schedule("hold expiry", expirySecs,
+                                                conn -> SeatHolds.expireAll(conn, HOLD_EXPIRY_BATCH_SIZE));
+    holdExpiryScheduled = true;
+  }
+
+  // Returns the JVM-wide seat ledger, creating it and scheduling its reconciliation on first
+  // use, or null if it's disabled
+  private static synchronized SeatLedger getSeatLedger() throws IOException {
+    if (sharedSeatLedger == null) {
+      if (!Boolean.parseBoolean(DBConnUtils.getProperty(SEAT_LEDGER_PROPERTY, "false"))) return null;
+      long reconcileSecs = Long.parseLong(DBConnUtils.getProperty(SEAT_LEDGER_RECONCILE_PROPERTY, "30"));
+      sharedSeatLedger = new SeatLedger();
+      MaintenanceScheduler.getInstance().schedule("seat ledger reconciliation", reconcileSecs,
+                                                  sharedSeatLedger::reconcile);
+    }
+    return sharedSeatLedger;
+  }
+
+  /**
+   * Returns the counts of how bookings have ended in this JVM
+   */
+  public static BookingStats getBookingStats() {
+    return bookingStats;
+  }
+
+  // Returns the JVM-wide reservation id allocator, creating it on first use
+  private static synchronized IdAllocator getReservationIds() throws IOException {
+    if (sharedReservationIds == null) {
+      int blockSize = Integer.parseInt(DBConnUtils.getProperty(RID_BLOCK_SIZE_PROPERTY, "100"));
+      sharedReservationIds = new IdAllocator("ReservationIds_cartierc", blockSize);
+    }
+    return sharedReservationIds;
+  }
+
+  // Returns the JVM-wide search cache, creating it on first use, or null if it's disabled
+  private static synchronized SearchCache<List<Itinerary>> getSearchCache() throws IOException {
+    if (sharedSearchCache == null) {
+      int size = Integer.parseInt(DBConnUtils.getProperty(SEARCH_CACHE_SIZE_PROPERTY, "0"));
+      long ttlSecs = Long.parseLong(DBConnUtils.getProperty(SEARCH_CACHE_TTL_PROPERTY, "600"));
+      if (size <= 0) return null;
+      sharedSearchCache = new SearchCache<>(size, ttlSecs);
+    }
+    return sharedSearchCache;
   }
 
   /**
@@ -101,9 +440,17 @@ public class Query extends QueryAbstract {
     try {
       // TODO: YOUR CODE HERE
       Statement stmt = conn.createStatement();
+      stmt.executeUpdate("DELETE FROM ReservationLeg_cartierc");
       stmt.executeUpdate("DELETE FROM Reservation_cartierc");
+      stmt.executeUpdate("DELETE FROM BalanceLedger_cartierc");
+      stmt.executeUpdate("DELETE FROM ResChanges_cartierc");
       stmt.executeUpdate("DELETE FROM User_cartierc");
+      stmt.executeUpdate("DELETE FROM Seats_cartierc");
       stmt.close();
+      reservationIds.reset(conn);
+      if (seatLedger != null) seatLedger.clear();
+      if (searchCache != null) searchCache.invalidateAll();
+      reservationView = null;
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -113,24 +460,28 @@ public class Query extends QueryAbstract {
    * prepare all the SQL statements in this method.
    */
   private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
-
     // TODO: YOUR CODE HERE
     getUserStmt = conn.prepareStatement(GET_USER_SQL);
     insertUserStmt = conn.prepareStatement(INSERT_USER_SQL);
+    cityStmt = conn.prepareStatement(CITY_SQL);
     directStmt = conn.prepareStatement(DIRECT_SQL);
     indirectStmt = conn.prepareStatement(INDIRECT_SQL);
-    numBookedOnStmt = conn.prepareStatement(NUM_BOOKED_ON_SQL);
-    numReservedOnF1Stmt = conn.prepareStatement(NUM_RESERVED_ON_F1_SQL);
-    numReservedOnF2Stmt = conn.prepareStatement(NUM_RESERVED_ON_F2_SQL);
+    topItinerariesStmt = conn.prepareStatement(TOP_ITINERARIES_SQL);
+    bookedOnStmt = conn.prepareStatement(BOOKED_ON_SQL);
+    reserveSeatStmt = conn.prepareStatement(RESERVE_SEAT_SQL);
+    initSeatsStmt = conn.prepareStatement(INIT_SEATS_SQL);
+    seatsRemainingStmt = conn.prepareStatement(SEATS_REMAINING_SQL);
+    lockFlightStmt = conn.prepareStatement(LOCK_FLIGHT_SQL);
     insertResStmt = conn.prepareStatement(INSERT_RES_SQL);
-    numResStmt = conn.prepareStatement(NUM_RES_SQL);
-    getResStmt = conn.prepareStatement(GET_RES_SQL);
-    flightPriceStmt = conn.prepareStatement(FLIGHT_PRICE_SQL);
-    payResStmt = conn.prepareStatement(PAY_RES_SQL);
-    lowerBalStmt = conn.prepareStatement(LOWER_BAL_SQL);
+    insertResLegStmt = conn.prepareStatement(INSERT_RES_LEG_SQL);
+    holdCostStmt = conn.prepareStatement(HOLD_COST_SQL);
+    settleStmt = conn.prepareStatement(SETTLE_SQL);
+    withdrawHoldStmt = conn.prepareStatement(WITHDRAW_HOLD_SQL);
+    lockBalanceStmt = conn.prepareStatement(LOCK_BALANCE_SQL);
+    unlockBalanceStmt = conn.prepareStatement(UNLOCK_BALANCE_SQL);
+    bumpResVersionStmt = conn.prepareStatement(BUMP_RES_VERSION_SQL);
+    resVersionStmt = conn.prepareStatement(RES_VERSION_SQL);
     getResForStmt = conn.prepareStatement(GET_RES_FOR_SQL);
-    getFlightStmt = conn.prepareStatement(GET_FLIGHT_SQL);
   }
 
   // Rolls back conn; catches SQLException if one occurs
@@ -180,11 +531,15 @@ public class Query extends QueryAbstract {
       }
       currUser = username;
       itineraries.clear();
+      reservationView = null;
       conn.commit();
       setAutoCommit(conn, true);
+      if (PasswordUtils.needsRehash(saltAndHash)) {
+        rehashInBackground(username, password, saltAndHash);
+      }
       return "Logged in as " + username + "\n";
 
-    } catch (SQLException e) {
+    } catch (SQLException | IllegalStateException e) {  // or the hashing pool is overloaded
       rollback(conn);
       setAutoCommit(conn, true);
       e.printStackTrace();
@@ -192,6 +547,26 @@ public class Query extends QueryAbstract {
     }
   }
 
+  // Replaces username's outdated password hash, oldHash, with one made with the current
+  // settings, without holding up their login: the hashing runs on the hashing pool and the
+  // update on the maintenance thread.  A failure just leaves the old hash for the next login.
+  private static void rehashInBackground(String username, String password, byte[] oldHash) {
+    PasswordUtils.saltAndHashPasswordAsync(password).thenAccept(newHash ->
+      MaintenanceScheduler.getInstance().runOnce("password rehash", maintenanceConn -> {
+        PreparedStatement rehashStmt = maintenanceConn.prepareStatement(REHASH_SQL);
+        rehashStmt.setBytes(1, newHash);
+        rehashStmt.setString(2, username);
+        rehashStmt.setBytes(3, oldHash);
+        rehashStmt.executeUpdate();
+        rehashStmt.close();
+      })
+    ).exceptionally(e -> {
+      System.err.println("Couldn't rehash the password of " + username);
+      e.printStackTrace();
+      return null;
+    });
+  }
+
   /* See QueryAbstract.java for javadoc */
   public String transaction_createCustomer(String username, String password, int initAmount) {
     // TODO: YOUR CODE HERE
@@ -217,6 +592,11 @@ public class Query extends QueryAbstract {
         setAutoCommit(conn, true);
         return "Created user " + username + "\n";
 
+      } catch (IllegalStateException e) {  // the hashing pool is overloaded
+        rollback(conn);
+        setAutoCommit(conn, true);
+        e.printStackTrace();
+        return failRet;
       } catch (SQLException e) {
         rollback(conn);
         setAutoCommit(conn, true);
@@ -245,79 +625,88 @@ public class Query extends QueryAbstract {
   public String transaction_search(String originCity, String destinationCity, 
                                    boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries) {
-    // TODO: YOUR CODE HERE
+    return transaction_searchDays(originCity, destinationCity, directFlight, dayOfMonth, dayOfMonth,
+                                  numberOfItineraries, false);
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_searchDays(String originCity, String destinationCity,
+                                       boolean directFlight, int firstDay, int lastDay,
+                                       int numberOfItineraries, boolean bestPerDay) {
     if (numberOfItineraries <= 0) return "Failed to search\n";
+    if (lastDay < firstDay || lastDay - firstDay >= MAX_SEARCH_DAYS) return "Failed to search\n";
 
     itineraries.clear();
-    fillItineraryList(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+    int originId;
+    int destinationId;
+    try {
+      originId = cityId(originCity);
+      destinationId = cityId(destinationCity);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Failed to search\n";
+    }
+    if (originId == Dictionary.NOT_FOUND || destinationId == Dictionary.NOT_FOUND) {
+      return "No flights match your selection\n";
+    }
+
+    SearchCache.Key key = new SearchCache.Key(originId, destinationId, directFlight, firstDay,
+                                              lastDay, bestPerDay, numberOfItineraries);
+    List<Itinerary> cached = (searchCache == null) ? null : searchCache.get(key);
+    if (cached != null) {
+      itineraries.addAll(cached);
+    } else if (fillItineraryList(originId, destinationId, directFlight, firstDay, lastDay,
+                                 numberOfItineraries, bestPerDay) != null && searchCache != null) {
+      searchCache.put(key, Collections.unmodifiableList(new ArrayList<>(itineraries)));
+    }
     if (itineraries.size() == 0) return "No flights match your selection\n";
 
-    return makeSearchString(itineraries);
+    return makeSearchString(itineraries, bestPerDay);
+  }
+
+  // Returns city's Dictionary.CITIES id, or NOT_FOUND if no flight touches it (so it can't have
+  // any itineraries).  In "index" mode every such city already has one; the other modes give
+  // one to a city the first time Flights shows it exists, so names users make up never take
+  // up ids (which are never freed) or search cache entries
+  private int cityId(String city) throws SQLException {
+    int id = Dictionary.CITIES.idOf(city);
+    if (id != Dictionary.NOT_FOUND || flightIndex != null) return id;
+
+    cityStmt.clearParameters();
+    cityStmt.setString(1, city);
+    cityStmt.setString(2, city);
+    ResultSet cityRs = cityStmt.executeQuery();
+    boolean exists = cityRs.next();
+    cityRs.close();
+    return exists ? Dictionary.CITIES.intern(city) : Dictionary.NOT_FOUND;
   }
 
-  // Returns list of itineraries, only direct if directFlight is true, size numberOfItineraries,
-  // going from originCity to destinationCity,
-  // in ascending order by total time
+  // Returns list of itineraries, only direct if directFlight is true, going from originCity to
+  // destinationCity (as Dictionary.CITIES ids) on firstDay through lastDay
+  // If bestPerDay, that's up to numberOfItineraries for each day, with the days in order and
+  // each day's in ascending order by total time; otherwise it's up to numberOfItineraries in
+  // all, in ascending order by total time
   // indices correspond with itinerary IDs
-  private List<Itinerary> fillItineraryList(String originCity, String destinationCity, 
-                                          boolean directFlight, int dayOfMonth,
-                                          int numberOfItineraries) {
+  private List<Itinerary> fillItineraryList(int originCity, int destinationCity, 
+                                          boolean directFlight, int firstDay, int lastDay,
+                                          int numberOfItineraries, boolean bestPerDay) {
     // check non-null for Coll.sort()
     if (itineraries == null) throw new IllegalStateException("itineraries is null, shouldn't happen");
     try {
-      // direct itineraries
-      directStmt.clearParameters();
-      directStmt.setString(1, originCity);
-      directStmt.setString(2, destinationCity);
-      directStmt.setInt(3, dayOfMonth);
-      ResultSet directRs = directStmt.executeQuery();
-
-      while (directRs.next()) {
-        int capacity = getCapacity(directRs.getString("tail_num"));
-        itineraries.add(new Itinerary(directRs.getInt("fid"), directRs.getInt("day_of_month"), directRs.getString("cid"),
-                                      directRs.getInt("op_carrier_flight_num") + "", directRs.getString("origin_city"),
-                                      directRs.getString("dest_city"), directRs.getInt("duration_mins"), capacity, directRs.getInt("price")));
+      // already ranked, trimmed, and sorted by the database
+      if (searchMode.equals(COMBINED_SEARCH_MODE) && !bestPerDay) {
+        itineraries.addAll(compact(findTopItineraries(originCity, destinationCity, directFlight || maxLegs == 1,
+                                                      firstDay, lastDay, numberOfItineraries)));
+        return itineraries;
       }
-      directRs.close();
-      // filter down directs if needed
-      int numDirects = itineraries.size();
-      if (numDirects > numberOfItineraries) {
-        Collections.sort(itineraries);
-        itineraries = itineraries.subList(0, numberOfItineraries);
-
-      // indirect itineraries
-      } else if (!directFlight && numDirects < numberOfItineraries) {
-        indirectStmt.clearParameters();
-        indirectStmt.setString(1, originCity);
-        indirectStmt.setString(2, destinationCity);
-        indirectStmt.setInt(3, dayOfMonth);
-        indirectStmt.setInt(4, dayOfMonth);
-
-        ResultSet indirectRs = indirectStmt.executeQuery();
-        List<Itinerary> indirects = new ArrayList<>();
-        while (indirectRs.next()) {
-          int f1Capacity = getCapacity(indirectRs.getString("f1TailNum"));
-          int f2Capacity = getCapacity(indirectRs.getString("f2TailNum"));
-          indirects.add(new Itinerary(indirectRs.getInt("f1Id"), indirectRs.getInt("f1Day"), indirectRs.getString("f1Carrier"),
-                                      indirectRs.getInt("f1FNum") + "", indirectRs.getString("f1Origin"), indirectRs.getString("f1Dest"),
-                                      indirectRs.getInt("f1Tm"), f1Capacity, indirectRs.getInt("f1Pri"),
-                                      indirectRs.getInt("f2Id"), indirectRs.getInt("f2Day"), indirectRs.getString("f2Carrier"),
-                                      indirectRs.getInt("f2FNum") + "", indirectRs.getString("f2Origin"), indirectRs.getString("f2Dest"),
-                                      indirectRs.getInt("f2Tm"), f2Capacity, indirectRs.getInt("f2Pri")));
-        }
-        indirectRs.close();
 
-        // filter down indirects if needed
-        Collections.sort(indirects);
-        int numRemainingResults = numberOfItineraries - numDirects;
-        if (indirects.size() > numRemainingResults) {
-          indirects = indirects.subList(0, numRemainingResults);
-        }
-        // add indirects to results
-        itineraries.addAll(indirects);
+      List<Itinerary> found = new ArrayList<>();
+      for (List<Itinerary> ranked : rankItineraries(originCity, destinationCity, directFlight,
+                                                    firstDay, lastDay, numberOfItineraries,
+                                                    bestPerDay)) {
+        found.addAll(ranked);
       }
-      // sort all results
-      Collections.sort(itineraries);
+      itineraries.addAll(compact(found));
       return itineraries;
 
     } catch (SQLException e) {
@@ -326,27 +715,270 @@ public class Query extends QueryAbstract {
     }
   }
 
+  // Returns found with their flights copied into a store of their own, so that what's kept
+  // of a search (for the session, and in the search cache) holds just their rows and not
+  // every row read on the way to them; itineraries from the FlightIndex are left as they are,
+  // since they only point into it
+  private List<Itinerary> compact(List<Itinerary> found) {
+    if (flightIndex != null) return found;
+
+    FlightStore kept = new FlightStore();
+    List<Itinerary> compacted = new ArrayList<>(found.size());
+    for (Itinerary itinerary : found) {
+      int[] legs = new int[itinerary.numFlights()];
+      for (int leg = 0; leg < legs.length; leg++) {
+        legs[leg] = kept.addFrom(itinerary.store, itinerary.leg(leg));
+      }
+      compacted.add(new Itinerary(kept, legs));
+    }
+    return compacted;
+  }
+
+  // Returns the best numberOfItineraries itineraries from originCity to destinationCity over
+  // firstDay through lastDay, sorted: one list for each day if bestPerDay, else one list for
+  // the whole range. Either way the flights are only fetched once
+  // A list holds the best numberOfItineraries directs if there are that many, otherwise all
+  // of the directs plus the best indirects that fit in the remaining results
+  private List<List<Itinerary>> rankItineraries(int originCity, int destinationCity,
+                                                boolean directFlight, int firstDay, int lastDay,
+                                                int numberOfItineraries, boolean bestPerDay)
+      throws SQLException {
+    int numLists = bestPerDay ? lastDay - firstDay + 1 : 1;
+    List<List<Itinerary>> ranked = new ArrayList<>(numLists);
+    for (int i = 0; i < numLists; i++) {
+      ranked.add(new ArrayList<>());
+    }
+
+    // direct itineraries
+    for (Itinerary direct : findDirectItineraries(originCity, destinationCity, firstDay, lastDay)) {
+      ranked.get(bestPerDay ? direct.dayOfMonth() - firstDay : 0).add(direct);
+    }
+
+    ItineraryHeap[] indirects = new ItineraryHeap[numLists];  // null where none are needed
+    boolean needIndirects = false;
+    for (int i = 0; i < numLists; i++) {
+      List<Itinerary> directs = ranked.get(i);
+      int numDirects = directs.size();
+      // filter down directs if needed
+      if (numDirects > numberOfItineraries) {
+        Collections.sort(directs);
+        ranked.set(i, new ArrayList<>(directs.subList(0, numberOfItineraries)));
+      } else if (!directFlight && maxLegs > 1 && numDirects < numberOfItineraries) {
+        // room for the best indirects that fit in the remaining results
+        indirects[i] = new ItineraryHeap(numberOfItineraries - numDirects);
+        needIndirects = true;
+      }
+    }
+
+    // indirect itineraries, for every list at once
+    if (needIndirects) {
+      IntFunction<ItineraryHeap> heapFor = day -> indirects[bestPerDay ? day - firstDay : 0];
+      if (maxLegs > 2) {
+        findMultiLegItineraries(originCity, destinationCity, firstDay, lastDay, heapFor);
+      } else {
+        findIndirectItineraries(originCity, destinationCity, firstDay, lastDay, heapFor);
+      }
+      for (int i = 0; i < numLists; i++) {
+        if (indirects[i] != null) ranked.get(i).addAll(indirects[i].toSortedList());
+      }
+    }
+
+    // sort all results
+    for (List<Itinerary> list : ranked) {
+      Collections.sort(list);
+    }
+    return ranked;
+  }
+
+  // Returns every direct itinerary from originCity to destinationCity on firstDay through
+  // lastDay, unsorted
+  private List<Itinerary> findDirectItineraries(int originCity, int destinationCity,
+                                                int firstDay, int lastDay) throws SQLException {
+    List<Itinerary> directs = new ArrayList<>();
+    if (flightIndex != null) {
+      FlightStore indexed = flightIndex.store();
+      for (int day = firstDay; day <= lastDay; day++) {
+        flightIndex.forEachDirect(day, originCity, destinationCity,
+                                  row -> directs.add(new Itinerary(indexed, row)));
+      }
+      return directs;
+    }
+
+    directStmt.clearParameters();
+    directStmt.setString(1, Dictionary.CITIES.nameOf(originCity));
+    directStmt.setString(2, Dictionary.CITIES.nameOf(destinationCity));
+    directStmt.setInt(3, firstDay);
+    directStmt.setInt(4, lastDay);
+    ResultSet directRs = directStmt.executeQuery();
+
+    FlightStore flights = new FlightStore();
+    while (directRs.next()) {
+      int capacity = getCapacity(directRs.getString("tail_num"));
+      int carrier = Dictionary.CARRIERS.intern(directRs.getString("cid"));
+      int row = flights.add(directRs.getInt("fid"), directRs.getInt("day_of_month"), carrier,
+                            directRs.getInt("op_carrier_flight_num"), originCity, destinationCity,
+                            directRs.getInt("duration_mins"), capacity, directRs.getInt("price"));
+      directs.add(new Itinerary(flights, row));
+    }
+    directRs.close();
+    return directs;
+  }
+
+  // Offers the one-stop itineraries from originCity to destinationCity on firstDay through
+  // lastDay to heapFor(their day), which is null for days that don't need any. Candidates
+  // that can't make their heap's cut are dropped before any Itinerary is built for them
+  private void findIndirectItineraries(int originCity, int destinationCity, int firstDay,
+                                       int lastDay, IntFunction<ItineraryHeap> heapFor)
+      throws SQLException {
+    if (flightIndex != null) {
+      FlightStore indexed = flightIndex.store();
+      for (int day = firstDay; day <= lastDay; day++) {
+        ItineraryHeap indirects = heapFor.apply(day);
+        if (indirects == null) continue;
+        flightIndex.forEachOneStop(day, originCity, destinationCity, (f1, f2) -> {
+          if (indirects.admits(indexed.time(f1) + indexed.time(f2), indexed.fid(f1), indexed.fid(f2))) {
+            indirects.offer(new Itinerary(indexed, f1, f2));
+          }
+        });
+      }
+      return;
+    }
+
+    indirectStmt.clearParameters();
+    indirectStmt.setString(1, Dictionary.CITIES.nameOf(originCity));
+    indirectStmt.setString(2, Dictionary.CITIES.nameOf(destinationCity));
+    indirectStmt.setInt(3, firstDay);
+    indirectStmt.setInt(4, lastDay);
+    // so the join's rows are streamed rather than all read in before the first one is seen
+    indirectStmt.setFetchSize(INDIRECT_FETCH_SIZE);  // only honoured outside auto-commit
+    setAutoCommit(conn, false);
+    try {
+      offerIndirects(indirectStmt.executeQuery(), originCity, destinationCity, heapFor);
+      conn.commit();
+    } catch (SQLException e) {
+      rollback(conn);
+      throw e;
+    } finally {
+      setAutoCommit(conn, true);
+    }
+  }
+
+  // Offers the one-stop itineraries in indirectRs, an INDIRECT_SQL result, to heapFor(their
+  // day), closing it once they're all read
+  private void offerIndirects(ResultSet indirectRs, int originCity, int destinationCity,
+                              IntFunction<ItineraryHeap> heapFor) throws SQLException {
+    FlightStore flights = new FlightStore();
+    while (indirectRs.next()) {
+      ItineraryHeap indirects = heapFor.apply(indirectRs.getInt("f1Day"));
+      if (indirects == null) continue;
+      int f1Id = indirectRs.getInt("f1Id");
+      int f2Id = indirectRs.getInt("f2Id");
+      int f1Tm = indirectRs.getInt("f1Tm");
+      int f2Tm = indirectRs.getInt("f2Tm");
+      if (!indirects.admits(f1Tm + f2Tm, f1Id, f2Id)) continue;
+
+      int f1Capacity = getCapacity(indirectRs.getString("f1TailNum"));
+      int f2Capacity = getCapacity(indirectRs.getString("f2TailNum"));
+      int via = Dictionary.CITIES.intern(indirectRs.getString("f1Dest"));
+      int f1 = flights.add(f1Id, indirectRs.getInt("f1Day"), Dictionary.CARRIERS.intern(indirectRs.getString("f1Carrier")),
+                           indirectRs.getInt("f1FNum"), originCity, via,
+                           f1Tm, f1Capacity, indirectRs.getInt("f1Pri"));
+      int f2 = flights.add(f2Id, indirectRs.getInt("f2Day"), Dictionary.CARRIERS.intern(indirectRs.getString("f2Carrier")),
+                           indirectRs.getInt("f2FNum"), via, destinationCity,
+                           f2Tm, f2Capacity, indirectRs.getInt("f2Pri"));
+      indirects.offer(new Itinerary(flights, f1, f2));
+    }
+    indirectRs.close();
+  }
+
+  // Offers the itineraries of 2 to maxLegs flights from originCity to destinationCity on
+  // firstDay through lastDay to heapFor(their day), by a best-first search of the FlightIndex
+  // that stops extending partial itineraries once they're slower than their heap's worst
+  private void findMultiLegItineraries(int originCity, int destinationCity, int firstDay,
+                                       int lastDay, IntFunction<ItineraryHeap> heapFor) {
+    FlightStore indexed = flightIndex.store();
+    for (int day = firstDay; day <= lastDay; day++) {
+      ItineraryHeap best = heapFor.apply(day);
+      if (best == null) continue;
+      flightIndex.forEachPath(day, originCity, destinationCity, 2, maxLegs,
+                              new FlightIndex.PathConsumer() {
+        public int maxTotalTime() {
+          return best.maxTotalTime();
+        }
+
+        public void accept(int[] rows, int totalTime) {
+          best.offer(new Itinerary(indexed, rows));
+        }
+      });
+    }
+  }
+
+  // Returns the same itineraries, in the same order, as the direct and indirect queries
+  // followed by fillItineraryList's trimming and sorting, using one round trip
+  private List<Itinerary> findTopItineraries(int originCity, int destinationCity,
+                                             boolean directFlight, int firstDay, int lastDay,
+                                             int numberOfItineraries) throws SQLException {
+    topItinerariesStmt.clearParameters();
+    String originName = Dictionary.CITIES.nameOf(originCity);
+    String destinationName = Dictionary.CITIES.nameOf(destinationCity);
+    topItinerariesStmt.setString(1, originName);
+    topItinerariesStmt.setString(2, destinationName);
+    topItinerariesStmt.setInt(3, firstDay);
+    topItinerariesStmt.setInt(4, lastDay);
+    topItinerariesStmt.setString(5, originName);
+    topItinerariesStmt.setString(6, destinationName);
+    topItinerariesStmt.setInt(7, firstDay);
+    topItinerariesStmt.setInt(8, lastDay);
+    topItinerariesStmt.setBoolean(9, !directFlight);  // include indirects?
+    topItinerariesStmt.setInt(10, numberOfItineraries);
+
+    List<Itinerary> top = new ArrayList<>();
+    FlightStore flights = new FlightStore();
+    ResultSet topRs = topItinerariesStmt.executeQuery();
+    while (topRs.next()) {
+      // f1's destination is the search's destination for directs, the connection otherwise
+      int f1Dest = Dictionary.CITIES.intern(topRs.getString("f1Dest"));
+      int f1 = flights.add(topRs.getInt("f1Id"), topRs.getInt("f1Day"), Dictionary.CARRIERS.intern(topRs.getString("f1Carrier")),
+                           topRs.getInt("f1FNum"), originCity, f1Dest,
+                           topRs.getInt("f1Tm"), topRs.getInt("f1Cap"), topRs.getInt("f1Pri"));
+      int f2Id = topRs.getInt("f2Id");
+      if (topRs.wasNull()) {  // direct
+        top.add(new Itinerary(flights, f1));
+      } else {
+        int f2 = flights.add(f2Id, topRs.getInt("f2Day"), Dictionary.CARRIERS.intern(topRs.getString("f2Carrier")),
+                             topRs.getInt("f2FNum"), f1Dest, destinationCity,
+                             topRs.getInt("f2Tm"), topRs.getInt("f2Cap"), topRs.getInt("f2Pri"));
+        top.add(new Itinerary(flights, f1, f2));
+      }
+    }
+    topRs.close();
+    return top;
+  }
+
   // Given a flight's tail num, returns flight's capacity
   // If tail num not found, returns -1
   private int getCapacity(String tailNum) throws SQLException {
-    flightCapacityStmt.clearParameters();
-    flightCapacityStmt.setString(1, tailNum);
-    ResultSet rs = flightCapacityStmt.executeQuery();
-    int capacity = rs.next() ? rs.getInt("num_seats") : -1;
-    rs.close();
-    return capacity;
+    if (capacityResolver == null) {
+      capacityResolver = CapacityResolver.getInstance(conn);
+    }
+    return capacityResolver.capacityOf(tailNum);
   }
 
-  // Returns String of formatted itineraries from given list
-  private String makeSearchString(List<Itinerary> itineraries) {
+  // Returns String of formatted itineraries from given list, headed by "Day <n>:" lines
+  // wherever the day changes if byDay
+  private String makeSearchString(List<Itinerary> itineraries, boolean byDay) {
     StringBuffer sb = new StringBuffer();
     int i = 0;
+    int day = 0;
     for (Itinerary itin : itineraries) {
+      if (byDay && itin.dayOfMonth() != day) {
+        day = itin.dayOfMonth();
+        sb.append("Day " + day + ":\n");
+      }
       sb.append("Itinerary " + i + ": ");
-      if (itin.f2 == null) { // direct
-        sb.append("1 flight(s), " + itin.totalTime + " minutes\n" + itin.f1.toString() + "\n");
-      } else { // indirect
-        sb.append("2 flight(s), " + itin.totalTime + " minutes\n" + itin.f1.toString() + "\n" + itin.f2.toString() + "\n");
+      sb.append(itin.numFlights() + " flight(s), " + itin.totalTime + " minutes\n");
+      for (int leg = 0; leg < itin.numFlights(); leg++) {
+        sb.append(itin.flight(leg) + "\n");
       }
       i++;
     }
@@ -355,207 +987,629 @@ public class Query extends QueryAbstract {
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_book(int itineraryId) {
+    return transaction_bookBatch(Collections.singletonList(itineraryId), 1);
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_bookBatch(List<Integer> itineraryIds, int passengers) {
     if (currUser == null) return "Cannot book reservations, not logged in\n";
-    if (itineraryId < 0 || itineraryId >= itineraries.size()) return "No such itinerary " + itineraryId + "\n";
+    for (int itineraryId : itineraryIds) {
+      if (itineraryId < 0 || itineraryId >= itineraries.size()) return "No such itinerary " + itineraryId + "\n";
+    }
 
     final String failRet = "Booking failed\n";
+    final String sameDayRet = "You cannot book two flights in the same day\n";
+    if (itineraryIds.isEmpty() || passengers <= 0) return failRet;
+
+    List<Itinerary> batch = new ArrayList<>();
+    Set<Integer> days = new HashSet<>();
+    for (int itineraryId : itineraryIds) {
+      Itinerary itinerary = itineraries.get(itineraryId);
+      if (!days.add(itinerary.dayOfMonth())) return sameDayRet;
+      batch.add(itinerary);
+    }
+    int[] seatFids = seatFids(batch, passengers);
+
+    // turn away itineraries with a flight this JVM knows is sold out before any SQL runs
+    int[] admittedFids = null;  // null unless the seat ledger admitted the booking
+    if (seatLedger != null) {
+      try {
+        if (!admitToSeatLedger(batch, seatFids)) {
+          bookingStats.recordRejected();
+          return failRet;
+        }
+        admittedFids = seatFids;
+      } catch (SQLException e) {
+        e.printStackTrace();
+        bookingStats.recordFailed();
+        return failRet;
+      }
+    }
+
+    int[] resIds = null;  // kept across retries, so ids aren't skipped after a deadlock
     for (int tries = 0; tries < MAX_TRIES; tries++) {
       try {
         // more error checking (that does sql)
-        Itinerary itinerary = itineraries.get(itineraryId);
-
         setAutoCommit(conn, false);
-        if (alreadyBookedOn(itinerary.f1.dayOfMonth)) {
-          rollback(conn);
-          setAutoCommit(conn, true);
-          return "You cannot book two flights in the same day\n";
+        if (lockFlightsFirst) lockFlights(seatFids);
+        for (Itinerary itinerary : batch) {
+          int day = itinerary.dayOfMonth();
+          if (alreadyBookedOn(day) && (seatHolds == null || !seatHolds.expireFor(currUser, day))) {
+            rollback(conn);
+            setAutoCommit(conn, true);
+            settleSeatLedger(admittedFids, false);
+            bookingStats.recordRejected();
+            return sameDayRet;
+          }
         }
-        if (!itinerary.hasSpace()) {
+        if (!reserveSeats(batch, passengers)) {
           rollback(conn);
           setAutoCommit(conn, true);
+          settleSeatLedger(admittedFids, false);
+          bookingStats.recordRejected();
           return failRet;
         }
 
-        // book
-        insertResStmt.clearParameters();
-        int resId = getLastResId() + 1;
-        insertResStmt.setInt(1, resId);  // rid
-        insertResStmt.setInt(2, itineraries.get(itineraryId).f1.fid);  // f1id
-        Flight f2 = itineraries.get(itineraryId).f2;
-        if (f2 != null) { 
-          insertResStmt.setInt(3, f2.fid);
-        } else {
-          insertResStmt.setNull(3, java.sql.Types.INTEGER);  // f2id
+        // book, sending every reservation (and its flights after the 2nd) in one round trip
+        if (resIds == null) {
+          resIds = new int[batch.size()];
+          for (int i = 0; i < resIds.length; i++) {
+            resIds[i] = (int) reservationIds.nextId(conn);
+          }
+        }
+        insertResStmt.clearBatch();
+        insertResLegStmt.clearBatch();
+        for (int i = 0; i < batch.size(); i++) {
+          Itinerary itinerary = batch.get(i);
+          insertResStmt.clearParameters();
+          insertResStmt.setInt(1, resIds[i]);  // rid
+          insertResStmt.setInt(2, itinerary.fid(0));  // f1id
+          if (!itinerary.isDirect()) {
+            insertResStmt.setInt(3, itinerary.fid(1));
+          } else {
+            insertResStmt.setNull(3, java.sql.Types.INTEGER);  // f2id
+          }
+          insertResStmt.setString(4, currUser); // username
+          insertResStmt.setInt(5, 0);  // isPaidFor (false)
+          insertResStmt.setInt(6, itinerary.dayOfMonth());  // travelDay
+          insertResStmt.setInt(7, passengers);  // seats
+          if (holdTtlSecs > 0) {
+            insertResStmt.setInt(8, holdTtlSecs);  // holdExpires
+          } else {
+            insertResStmt.setNull(8, java.sql.Types.INTEGER);  // never expires
+          }
+          insertResStmt.addBatch();
+          for (int leg = 2; leg < itinerary.numFlights(); leg++) {
+            insertResLegStmt.clearParameters();
+            insertResLegStmt.setInt(1, resIds[i]);
+            insertResLegStmt.setInt(2, leg + 1);  // legNum, counting from 1
+            insertResLegStmt.setInt(3, itinerary.fid(leg));
+            insertResLegStmt.addBatch();
+          }
         }
-        insertResStmt.setString(4, currUser); // username
-        insertResStmt.setInt(5, 0);  // isPaidFor (false)
-        insertResStmt.executeUpdate();
+        insertResStmt.executeBatch();
+        insertResLegStmt.executeBatch();
+        long resVersion = bumpResVersion();
 
         conn.commit();
         setAutoCommit(conn, true);
-        return "Booked flight(s), reservation ID: " + resId + "\n";
+        if (viewIsCurrentBefore(resVersion)) {
+          long holdExpiresMillis = (holdTtlSecs > 0) ? System.currentTimeMillis() + holdTtlSecs * 1000L : 0;
+          for (int i = 0; i < batch.size(); i++) {
+            Itinerary itinerary = batch.get(i);
+            List<String> flights = new ArrayList<>();
+            for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+              flights.add(itinerary.flight(leg).toString());
+            }
+            reservationView.add(resIds[i], false, passengers, flights, holdExpiresMillis);
+          }
+          reservationView.setVersion(resVersion);
+        } else {
+          reservationView = null;
+        }
+        settleSeatLedger(admittedFids, true);
+        bookingStats.recordBooked();
+        StringBuffer sb = new StringBuffer();
+        for (int resId : resIds) {
+          sb.append("Booked flight(s), reservation ID: " + resId + "\n");
+        }
+        return sb.toString();
 
       } catch(SQLException e) {
         rollback(conn);
         setAutoCommit(conn, true);
+        if (isUniqueViolation(e)) {
+          // another session booked this user on the same day after alreadyBookedOn checked
+          settleSeatLedger(admittedFids, false);
+          bookingStats.recordRejected();
+          return sameDayRet;
+        }
         if (!isDeadlock(e)) {
           e.printStackTrace();
+          settleSeatLedger(admittedFids, false);
+          bookingStats.recordFailed();
           return failRet;
         }
+        bookingStats.recordAbort();
       }
     }
+    settleSeatLedger(admittedFids, false);
+    bookingStats.recordFailed();
     return failRet;
   }
 
+  // Returns the id of every flight in batch, once for each seat booking it for passengers takes
+  private static int[] seatFids(List<Itinerary> batch, int passengers) {
+    int numSeats = 0;
+    for (Itinerary itinerary : batch) {
+      numSeats += itinerary.numFlights() * passengers;
+    }
+    int[] fids = new int[numSeats];
+    int i = 0;
+    for (Itinerary itinerary : batch) {
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        for (int passenger = 0; passenger < passengers; passenger++) {
+          fids[i++] = itinerary.fid(leg);
+        }
+      }
+    }
+    return fids;
+  }
+
+  // Asks the seat ledger to admit the seats on seatFids that booking batch takes, first seeding
+  // it with the seats left on any flights it isn't tracking yet; returns false if a flight
+  // doesn't have enough left
+  private boolean admitToSeatLedger(List<Itinerary> batch, int[] seatFids) throws SQLException {
+    for (Itinerary itinerary : batch) {
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        int fid = itinerary.fid(leg);
+        if (seatLedger.isTracked(fid)) continue;
+
+        // flights without a Seats_cartierc row haven't been booked (since it was created)
+        int remaining = itinerary.store.capacity(itinerary.leg(leg));
+        seatsRemainingStmt.clearParameters();
+        seatsRemainingStmt.setInt(1, fid);
+        ResultSet remainingRs = seatsRemainingStmt.executeQuery();
+        if (remainingRs.next()) remaining = remainingRs.getInt("remaining");
+        remainingRs.close();
+        seatLedger.seed(fid, remaining);
+      }
+    }
+    return seatLedger.tryAcquire(seatFids);
+  }
+
+  // Tells the seat ledger whether the booking it admitted on fids went through; does nothing
+  // if it didn't admit one (fids is null)
+  private void settleSeatLedger(int[] fids, boolean booked) {
+    if (fids == null) return;
+    if (booked) {
+      seatLedger.commit(fids);
+    } else {
+      seatLedger.release(fids);
+    }
+  }
+
+  // Takes the advisory lock on each of the flights in fids, once each and in fid order so that
+  // bookings sharing flights can't deadlock; they're released when the transaction ends
+  private void lockFlights(int[] fids) throws SQLException {
+    fids = Arrays.stream(fids).distinct().sorted().toArray();
+
+    long start = System.nanoTime();
+    for (int fid : fids) {
+      lockFlightStmt.clearParameters();
+      lockFlightStmt.setInt(1, fid);
+      lockFlightStmt.executeQuery().close();
+    }
+    bookingStats.recordLockWait(System.nanoTime() - start);
+  }
+
+  // Takes passengers seats on each flight of every itinerary in batch, returning false if any
+  // of them doesn't have enough left
+  // Seats are taken in fid order, so bookings that share flights lock their Seats_cartierc
+  // rows in the same order and can't deadlock each other
+  private boolean reserveSeats(List<Itinerary> batch, int passengers) throws SQLException {
+    // the seats to take on each flight, since itineraries in a batch may share flights, and
+    // the capacity to create its row with
+    TreeMap<Integer, Integer> seatsByFid = new TreeMap<>();
+    Map<Integer, Integer> capacities = new HashMap<>();
+    for (Itinerary itinerary : batch) {
+      for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+        int fid = itinerary.fid(leg);
+        seatsByFid.merge(fid, passengers, Integer::sum);
+        capacities.put(fid, itinerary.store.capacity(itinerary.leg(leg)));
+      }
+    }
+
+    for (Map.Entry<Integer, Integer> entry : seatsByFid.entrySet()) {
+      int fid = entry.getKey();
+      int seats = entry.getValue();
+      if (reserveSeats(fid, seats)) continue;
+      // not enough seats left, or no row yet; whether this booking or a concurrent one
+      // creates it, the row is there once initSeats returns, so the retry decides
+      initSeats(fid, capacities.get(fid));
+      if (reserveSeats(fid, seats)) continue;
+      // not enough seats left, unless some are held by expired holds
+      if (seatHolds != null && seatHolds.expireOnFlight(fid) && reserveSeats(fid, seats)) continue;
+
+      // a single seat not being left means the flight is full
+      if (seatLedger != null && seats == 1) seatLedger.markSoldOut(fid);
+      return false;
+    }
+    return true;
+  }
+
+  // Takes seats of flight fid's remaining seats, returning false if there aren't that many
+  private boolean reserveSeats(int fid, int seats) throws SQLException {
+    reserveSeatStmt.clearParameters();
+    reserveSeatStmt.setInt(1, seats);
+    reserveSeatStmt.setInt(2, fid);
+    reserveSeatStmt.setInt(3, seats);
+    return reserveSeatStmt.executeUpdate() == 1;
+  }
+
+  // Creates flight fid's row in Seats_cartierc, unless it already has one
+  private void initSeats(int fid, int capacity) throws SQLException {
+    initSeatsStmt.clearParameters();
+    initSeatsStmt.setInt(1, fid);
+    initSeatsStmt.setInt(2, capacity);
+    initSeatsStmt.setInt(3, fid);
+    initSeatsStmt.setInt(4, fid);
+    initSeatsStmt.setInt(5, fid);
+    initSeatsStmt.setInt(6, fid);
+    initSeatsStmt.executeUpdate();
+  }
+
   // Returns true if currUser already booked reservation on dayOfMonth, false otherwise
   private boolean alreadyBookedOn(int dayOfMonth) throws SQLException {
-    numBookedOnStmt.clearParameters();
-    numBookedOnStmt.setInt(1, dayOfMonth);
-    numBookedOnStmt.setString(2, currUser);
-    ResultSet numBookedOnRs = numBookedOnStmt.executeQuery();
-    numBookedOnRs.next();
-
-    boolean alreadyBooked = (numBookedOnRs.getInt("count") > 0);
-    numBookedOnRs.close();
+    bookedOnStmt.clearParameters();
+    bookedOnStmt.setString(1, currUser);
+    bookedOnStmt.setInt(2, dayOfMonth);
+    ResultSet bookedOnRs = bookedOnStmt.executeQuery();
+
+    boolean alreadyBooked = bookedOnRs.next();
+    bookedOnRs.close();
     return alreadyBooked;
   }
 
-  // Returns last reservation ID booked (i.e., num reservations)
-  private int getLastResId() throws SQLException {
-    ResultSet numResRs = numResStmt.executeQuery();
-    numResRs.next();
-    int lastResId = numResRs.getInt("count");
-    numResRs.close();
-    return lastResId;
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_pay(int reservationId) {
+    return transaction_payBatch(Collections.singletonList(reservationId));
   }
 
   /* See QueryAbstract.java for javadoc */
-  public String transaction_pay(int reservationId) {
-    // TODO: YOUR CODE HERE
+  public String transaction_payBatch(List<Integer> reservationIds) {
     if (currUser == null) return "Cannot pay, not logged in\n";
-    final String failRet = "Failed to pay for reservation " + reservationId + "\n";
+    boolean all = (reservationIds == null);
+    List<Integer> wanted = all ? Collections.emptyList() : new ArrayList<>(new LinkedHashSet<>(reservationIds));
+    final String failRet = (wanted.size() == 1) ? "Failed to pay for reservation " + wanted.get(0) + "\n"
+                                                : "Failed to pay for reservations\n";
+    if (!all && wanted.isEmpty()) return failRet;
+
+    // without the lock on the balance first; only if that comes up short because of payments
+    // racing this one, again holding it, so such payments go one at a time
+    String result = payWithRetries(all, wanted, failRet, false);
+    if (result != null) return result;
     try {
-      // more error checking (that does sql)
-      final String cantFind = "Cannot find unpaid reservation " + reservationId + " under user: " + currUser + "\n";
-      // get res details
-      getResStmt.clearParameters();
-      getResStmt.setInt(1, reservationId);
-      setAutoCommit(conn, false);
-      ResultSet getResRs = getResStmt.executeQuery();
-      if (!getResRs.next()) {
-        rollback(conn);
-        setAutoCommit(conn, true);
-        getResRs.close();
-        return cantFind;
-      }
-      String resUser = getResRs.getString("username");
-      int isPaidFor = getResRs.getInt("isPaidFor");
-      if (!resUser.equals(currUser) || isPaidFor == 1) {
-        rollback(conn);
-        setAutoCommit(conn, true);
-        getResRs.close();
-        return cantFind;
-      }
-      // get itinerary price
-      // f1 price
-      int f1id = getResRs.getInt("f1id");
-      flightPriceStmt.clearParameters();
-      flightPriceStmt.setInt(1, f1id);
-      ResultSet f1PriceRs = flightPriceStmt.executeQuery();
-      f1PriceRs.next();
-      int itinPrice = f1PriceRs.getInt("price");
-      f1PriceRs.close();
-      // f2 price
-      int f2id = getResRs.getInt("f2id");
-      if (!getResRs.wasNull()) {
-        flightPriceStmt.clearParameters();
-        flightPriceStmt.setInt(1, f2id);
-        ResultSet f2PriceRs = flightPriceStmt.executeQuery();
-        f2PriceRs.next();
-        itinPrice += f2PriceRs.getInt("price");
-        f2PriceRs.close();
-      }
-      getResRs.close();
-      // get user balance
-      getUserStmt.clearParameters();
-      getUserStmt.setString(1, currUser);
-      ResultSet getUserRs = getUserStmt.executeQuery();
-      getUserRs.next();
-      int balance = getUserRs.getInt("balance");
-      getUserRs.close();
-      if (balance < itinPrice) {
-        rollback(conn);
-        setAutoCommit(conn, true);
-        return "User has only " + balance + " in account but itinerary costs " + itinPrice + "\n";
+      lockBalance(lockBalanceStmt);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return failRet;
+    }
+    try {
+      return payWithRetries(all, wanted, failRet, true);
+    } finally {
+      unlockBalance();
+    }
+  }
+
+  // Pays for wanted (or all of currUser's unpaid reservations), looking again if they change
+  // underfoot, and returns what to print; if the balance would cover them but for other
+  // payments' pending holds, returns null instead unless holdingLock, in which case it waits
+  // for those holds to be settled or withdrawn and checks again
+  private String payWithRetries(boolean all, List<Integer> wanted, String failRet, boolean holdingLock) {
+    for (int tries = 0; tries < MAX_TRIES; tries++) {
+      long holdId = NO_HOLD;
+      try {
+        Map<Integer, Integer> costs = new LinkedHashMap<>();  // in rid order
+        holdId = holdCost(all, wanted, costs);
+
+        // nothing is paid for unless everything asked for can be
+        for (int reservationId : wanted) {
+          if (!costs.containsKey(reservationId)) {
+            return "Cannot find unpaid reservation " + reservationId + " under user: " + currUser + "\n";
+          }
+        }
+        if (costs.isEmpty()) return "No unpaid reservations found\n";
+        int totalCost = 0;
+        for (int cost : costs.values()) {
+          totalCost += cost;
+        }
+
+        // the hold was committed before it's settled, and settling counts every other
+        // pending hold, so whichever of the payments racing on the balance settles last sees
+        // all the others' holds, and they can't overdraw it
+        SettleResult settle = settleHold(holdId, costs.keySet());
+        if (settle.resVersion < 0) {
+          withdrawHold(holdId);
+          if (settle.cost == null || settle.settled + settle.others - settle.cost >= 0) {
+            continue;  // some were paid for or expired since they were priced
+          }
+          if (settle.settled < totalCost) {
+            return "User has only " + settle.settled + " in account but "
+                + (costs.size() == 1 ? "itinerary costs " : "itineraries cost ") + totalCost + "\n";
+          }
+          if (!holdingLock) return null;
+          Thread.sleep(PENDING_HOLD_WAIT_MILLIS);  // for the racing holds to resolve
+          continue;
+        }
+        long resVersion = settle.resVersion;
+        if (viewIsCurrentBefore(resVersion)) {
+          for (int reservationId : costs.keySet()) {
+            reservationView.markPaid(reservationId);
+          }
+          reservationView.setVersion(resVersion);
+        } else {
+          reservationView = null;
+        }
+
+        // as if each had been paid for in turn
+        int balance = settle.settled;
+        StringBuffer sb = new StringBuffer();
+        for (Map.Entry<Integer, Integer> entry : costs.entrySet()) {
+          balance -= entry.getValue();
+          sb.append("Paid reservation: " + entry.getKey() + " remaining balance: " + balance + "\n");
+        }
+        return sb.toString();
+
+      } catch(SQLException e) {
+        if (holdId != NO_HOLD) {
+          try {
+            withdrawHold(holdId);
+          } catch (SQLException withdrawFailure) {
+            withdrawFailure.printStackTrace();  // it's withdrawn once it's stale
+          }
+        }
+        if (!isDeadlock(e)) {
+          e.printStackTrace();
+          return failRet;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return failRet;
       }
+    }
+    return failRet;
+  }
 
-      // pay
-      payResStmt.clearParameters();
-      payResStmt.setInt(1, reservationId);
-      payResStmt.executeUpdate();
+  // Prices wanted (or all of currUser's unpaid reservations), putting the cost of each one
+  // found into costs by rid, and if they were all found holds their total cost against the
+  // balance; returns the hold's id, or NO_HOLD if there isn't one
+  private long holdCost(boolean all, List<Integer> wanted, Map<Integer, Integer> costs) throws SQLException {
+    holdCostStmt.clearParameters();
+    holdCostStmt.setString(1, currUser);
+    holdCostStmt.setBoolean(2, all);
+    holdCostStmt.setArray(3, conn.createArrayOf("integer", wanted.toArray()));
+    holdCostStmt.setString(4, currUser);
+    holdCostStmt.setBoolean(5, all);
+    holdCostStmt.setInt(6, wanted.size());
+    ResultSet holdRs = holdCostStmt.executeQuery();
+    long holdId = NO_HOLD;
+    while (holdRs.next()) {
+      costs.put(holdRs.getInt("rid"), holdRs.getInt("cost"));
+      holdId = holdRs.getLong("holdId");
+      if (holdRs.wasNull()) holdId = NO_HOLD;
+    }
+    holdRs.close();
+    return holdId;
+  }
 
-      lowerBalStmt.clearParameters();
-      lowerBalStmt.setInt(1, itinPrice);
-      lowerBalStmt.setString(2, currUser);
-      lowerBalStmt.executeUpdate();
+  // What settleHold found: the balance before this payment from settled deltas only, the
+  // total of other payments' pending holds (not positive), this hold's cost (null if it was
+  // withdrawn), and the user's new resVersion (-1 if nothing was paid for)
+  private static class SettleResult {
+    int settled;
+    int others;
+    Integer cost;
+    long resVersion;
+  }
 
-      conn.commit();
-      setAutoCommit(conn, true);
-      return "Paid reservation: " + reservationId + " remaining balance: " + (balance - itinPrice) + "\n";
+  // Marks rids paid and settles hold holdId on their cost, if the balance covers it whatever
+  // becomes of the other pending holds on it
+  private SettleResult settleHold(long holdId, Set<Integer> rids) throws SQLException {
+    settleStmt.clearParameters();
+    settleStmt.setString(1, currUser);
+    settleStmt.setArray(2, conn.createArrayOf("integer", rids.toArray()));
+    settleStmt.setLong(3, holdId);
+    settleStmt.setLong(4, holdId);
+    settleStmt.setString(5, currUser);
+    settleStmt.setLong(6, holdId);
+    settleStmt.setInt(7, rids.size());
+    settleStmt.setString(8, currUser);
+    settleStmt.setString(9, currUser);
+    ResultSet settleRs = settleStmt.executeQuery();
+    settleRs.next();
+    SettleResult result = new SettleResult();
+    result.settled = settleRs.getInt("settled");
+    result.others = settleRs.getInt("others");
+    int cost = settleRs.getInt("cost");
+    result.cost = settleRs.wasNull() ? null : cost;
+    result.resVersion = settleRs.getLong("resVersion");
+    if (settleRs.wasNull()) result.resVersion = -1;
+    settleRs.close();
+    return result;
+  }
 
-    } catch(SQLException e) {
-      rollback(conn);
-      setAutoCommit(conn, true);
+  // Withdraws hold holdId, unless it was settled
+  private void withdrawHold(long holdId) throws SQLException {
+    withdrawHoldStmt.clearParameters();
+    withdrawHoldStmt.setLong(1, holdId);
+    withdrawHoldStmt.executeUpdate();
+  }
+
+  // Takes or releases (as stmt is lockBalanceStmt or unlockBalanceStmt) the session's lock on
+  // currUser's balance
+  private void lockBalance(PreparedStatement stmt) throws SQLException {
+    stmt.clearParameters();
+    stmt.setString(1, currUser);
+    stmt.executeQuery().close();
+  }
+
+  // Releases the session's lock on currUser's balance; if that fails, releases every advisory
+  // lock the session holds rather than leave it held for as long as the connection lasts
+  private void unlockBalance() {
+    try {
+      lockBalance(unlockBalanceStmt);
+    } catch (SQLException e) {
       e.printStackTrace();
-      return failRet;
+      try (Statement stmt = conn.createStatement()) {
+        stmt.executeQuery("SELECT pg_advisory_unlock_all()").close();
+      } catch (SQLException unlockFailure) {
+        unlockFailure.printStackTrace();
+      }
     }
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_reservations() {
-    // TODO: YOUR CODE HERE
     if (currUser == null) return "Cannot view reservations, not logged in\n";
     try {
-      // more error checking (that does sql)
-      getResForStmt.clearParameters();
-      getResForStmt.setString(1, currUser);
-      setAutoCommit(conn, false);
-      ResultSet getResForRs = getResForStmt.executeQuery();
-      if (!getResForRs.next()) {
-        rollback(conn);
-        setAutoCommit(conn, true);
-        getResForRs.close();
-        return "No reservations found\n";
+      // the version is read first, so a view loaded after it is at least that current
+      long resVersion = resVersion();
+      if (reservationView == null || reservationView.version() != resVersion) {
+        reservationView = loadReservationView(resVersion);
       }
 
-      // make ret string
       StringBuffer sb = new StringBuffer();
+      if (reservationView.writeTo(sb, System.currentTimeMillis()) == 0) return "No reservations found\n";
+      return sb.toString();
 
-      while (true) {  // check condition for first iteration above, condition for rest of iterations at end of loop
-        sb.append("Reservation " + getResForRs.getInt("rid") + " paid: " + (getResForRs.getInt("isPaidFor") == 1) + ":\n");
+    } catch (SQLException e) {
+      rollback(conn);
+      setAutoCommit(conn, true);
+      e.printStackTrace();
+      return "Failed to retrieve reservations\n";
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);  // StringBuffers don't throw
+    }
+  }
 
-        int f1id = getResForRs.getInt("f1id");
-        Flight f1 = new Flight(f1id);
-        sb.append(f1.toString() + "\n");
+  // Reads all of currUser's reservations into a new view as of resVersion
+  private ReservationView loadReservationView(long resVersion) throws SQLException {
+    getResForStmt.clearParameters();
+    getResForStmt.setString(1, currUser);
+    getResForStmt.setInt(2, 0);  // rids start at 1
+    getResForStmt.setInt(3, Integer.MAX_VALUE);
+    getResForStmt.setFetchSize(RES_FETCH_SIZE);  // only honoured outside auto-commit
+    setAutoCommit(conn, false);
+    ResultSet getResForRs = getResForStmt.executeQuery();
+
+    ReservationView view = new ReservationView(resVersion);
+    boolean more = getResForRs.next();
+    while (more) {
+      int rid = getResForRs.getInt("rid");
+      boolean paid = (getResForRs.getInt("isPaidFor") == 1);
+      int seats = getResForRs.getInt("seats");
+      Timestamp holdExpires = getResForRs.getTimestamp("holdExpires");
+      List<String> flights = new ArrayList<>();
+      do {
+        flights.add(resFlight(getResForRs).toString());
+        more = getResForRs.next();
+      } while (more && getResForRs.getInt("rid") == rid);
+      view.add(rid, paid, seats, flights, (holdExpires == null) ? 0 : holdExpires.getTime());
+    }
+    getResForRs.close();
+    conn.commit();
+    setAutoCommit(conn, true);
+    return view;
+  }
 
-        int f2id = getResForRs.getInt("f2id");
-        if (!getResForRs.wasNull()) {
-          Flight f2 = new Flight(f2id);
-          sb.append(f2.toString() + "\n");
-        }
+  // Returns the flight in the current row of a GET_RES_FOR_SQL result
+  private static Flight resFlight(ResultSet rs) throws SQLException {
+    return new Flight(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("cid"),
+                      rs.getInt("op_carrier_flight_num"), rs.getString("origin_city"),
+                      rs.getString("dest_city"), rs.getInt("duration_mins"), rs.getInt("capacity"),
+                      rs.getInt("price"));
+  }
+
+  // Returns currUser's resVersion
+  private long resVersion() throws SQLException {
+    resVersionStmt.clearParameters();
+    resVersionStmt.setString(1, currUser);
+    ResultSet versionRs = resVersionStmt.executeQuery();
+    versionRs.next();
+    long resVersion = versionRs.getLong("resVersion");
+    versionRs.close();
+    return resVersion;
+  }
+
+  // Adds to currUser's resVersion, as part of the current transaction, returning the new one
+  private long bumpResVersion() throws SQLException {
+    bumpResVersionStmt.clearParameters();
+    bumpResVersionStmt.setString(1, currUser);
+    bumpResVersionStmt.setString(2, currUser);
+    ResultSet versionRs = bumpResVersionStmt.executeQuery();
+    versionRs.next();
+    long resVersion = versionRs.getLong("resVersion");
+    versionRs.close();
+    return resVersion;
+  }
+
+  // Returns true if this session's view was current just before the change that bumped
+  // currUser's resVersion to resVersion, so that change can be applied to it in place
+  private boolean viewIsCurrentBefore(long resVersion) {
+    return reservationView != null && reservationView.version() == resVersion - 1;
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public void transaction_reservationsPage(int afterRid, int limit, Appendable out) throws IOException {
+    if (currUser == null) {
+      out.append("Cannot view reservations, not logged in\n");
+      return;
+    }
+    if (limit <= 0) {
+      out.append("Failed to retrieve reservations\n");
+      return;
+    }
+    try {
+      getResForStmt.clearParameters();
+      getResForStmt.setString(1, currUser);
+      getResForStmt.setInt(2, afterRid);
+      getResForStmt.setInt(3, limit);
+      getResForStmt.setFetchSize(RES_FETCH_SIZE);  // only honoured outside auto-commit
+      setAutoCommit(conn, false);
+      ResultSet getResForRs = getResForStmt.executeQuery();
 
-        if (!getResForRs.next()) break;
+      // write out a row at a time as they arrive
+      int prevRid = -1;
+      int numReservations = 0;
+      while (getResForRs.next()) {
+        int rid = getResForRs.getInt("rid");
+        if (rid != prevRid) {
+          out.append("Reservation " + rid + " paid: " + (getResForRs.getInt("isPaidFor") == 1));
+          int seats = getResForRs.getInt("seats");
+          if (seats > 1) out.append(" seats: " + seats);
+          out.append(":\n");
+          prevRid = rid;
+          numReservations++;
+        }
+        out.append(resFlight(getResForRs).toString() + "\n");
       }
       getResForRs.close();
       conn.commit();
       setAutoCommit(conn, true);
-      return sb.toString();
+
+      if (numReservations == 0) {
+        out.append("No reservations found\n");
+      } else if (numReservations == limit) {
+        // there may be more
+        out.append("Next page: reservations after " + prevRid + " limit " + limit + "\n");
+      }
 
     } catch(SQLException e) {
       rollback(conn);
       setAutoCommit(conn, true);
       e.printStackTrace();
-      return "Failed to retrieve reservations\n";
+      out.append("Failed to retrieve reservations\n");
     }
   }
 
@@ -582,112 +1636,152 @@ public class Query extends QueryAbstract {
     return "40001".equals(e.getSQLState()) || "40P01".equals(e.getSQLState());
   }
 
+  // Returns true if e was thrown for violating a unique constraint, such as a concurrent
+  // session booking the same user on the same day
+  private static boolean isUniqueViolation(SQLException e) {
+    // a failed batch reports the statement's own error as its next exception
+    for (; e != null; e = e.getNextException()) {
+      if ("23505".equals(e.getSQLState())) return true;
+    }
+    return false;
+  }
+
   /**
    * A class to store information about a single Itinerary 
+   * The flights themselves live in a FlightStore and an itinerary only holds their row
+   * numbers, so itineraries are small and can be shared through the search cache
    */
-  class Itinerary implements Comparable<Itinerary> {
-    // Itinerary's flights
-    // If no 2nd flight, f2 will be null
-    public Flight f1, f2;
+  static class Itinerary implements Comparable<Itinerary> {
+    // Store holding the itinerary's flights
+    public final FlightStore store;
+
+    // Rows of the itinerary's flights in store, in the order they're flown
+    private final int[] legs;
+
+    // Sum of the flights' times
+    public final int totalTime;
+
+    // Constructs an itinerary from the flights at the given rows of store, in the order
+    // they're flown
+    public Itinerary(FlightStore store, int... legs) {
+      this.store = store;
+      this.legs = legs;
+      int time = 0;
+      for (int row : legs) {
+        time += store.time(row);
+      }
+      this.totalTime = time;
+    }
+
+    public int numFlights() {
+      return legs.length;
+    }
+
+    public boolean isDirect() {
+      return legs.length == 1;
+    }
 
-    // Time for flight 1 + time for flight 2
-    public int totalTime;
+    // Returns the day of the itinerary's flights
+    public int dayOfMonth() {
+      return store.dayOfMonth(legs[0]);
+    }
 
-    // Constructs a direct itinerary given details for single flight
-    public Itinerary(int id, int day, String carrier, String fnum, String origin, String dest, int tm,
-                     int cap, int pri) {
-      f1 = new Flight(id, day, carrier, fnum, origin, dest, tm, cap, pri);
-      f2 = null;
-      totalTime = tm;
+    // Returns the row in store of the leg'th flight, counting from 0
+    public int leg(int leg) {
+      return legs[leg];
     }
 
-    // Constructs an indirect itinerary given details for both flights
-    public Itinerary(int f1Id, int f1Day, String f1Carrier, String f1FNum,
-                     String f1Origin, String f1Dest, int f1Tm, int f1Cap, int f1Pri,
-                     int f2Id, int f2Day, String f2Carrier, String f2FNum,
-                     String f2Origin, String f2Dest, int f2Tm, int f2Cap, int f2Pri) { 
-      f1 = new Flight(f1Id, f1Day, f1Carrier, f1FNum, f1Origin, f1Dest, f1Tm, f1Cap, f1Pri);
-      f2 = new Flight(f2Id, f2Day, f2Carrier, f2FNum, f2Origin, f2Dest, f2Tm, f2Cap, f2Pri);
-      totalTime = f1Tm + f2Tm;
+    // Returns the id of the leg'th flight, counting from 0
+    public int fid(int leg) {
+      return store.fid(legs[leg]);
+    }
+
+    // Returns the leg'th flight, counting from 0, for printing
+    public Flight flight(int leg) {
+      int row = legs[leg];
+      return new Flight(store.fid(row), store.dayOfMonth(row), store.carrierId(row),
+                        store.flightNum(row), store.originCity(row), store.destCity(row),
+                        store.time(row), store.capacity(row), store.price(row));
     }
 
     // Returns negative if this itinerary's total time is smaller than other's, positive if vice versa
-    // If total times are tied,
-    // returns negative if this itinerary's 1st flight's id is smaller than other's, positive if vice versa
-    // If 1st flights' ids are tied (so both itineraries are indirect),
-    // returns negative if this itinerary's 2nd flight's id is smaller than other's, positive if vice versa
+    // If total times are tied, compares the itineraries' flight ids in order, and returns
+    // negative if this itinerary's first differing id is smaller than other's, positive if
+    // vice versa (so ties between a direct and an indirect go by 1st flight id)
     public int compareTo(Itinerary o) {
       if (this.totalTime != o.totalTime) {
         return this.totalTime - o.totalTime;
-      } else if (this.f2 != null && o.f2 != null) { // indirect
-        if (this.f1.fid != o.f1.fid) {
-          return this.f1.fid - o.f1.fid;
-        } else {
-          return this.f2.fid - o.f2.fid;
+      }
+      int shared = Math.min(this.numFlights(), o.numFlights());
+      for (int leg = 0; leg < shared; leg++) {
+        if (this.fid(leg) != o.fid(leg)) {
+          return this.fid(leg) - o.fid(leg);
         }
-      } else {
-        return this.f1.fid - o.f1.fid;
       }
+      return this.numFlights() - o.numFlights();
     }
+  }
 
-    // Returns true if itinerary has space on all of its flights, otherwise false
-    public boolean hasSpace() throws SQLException {
-      numReservedOnF1Stmt.clearParameters();
-      numReservedOnF1Stmt.setInt(1, this.f1.fid);
-      ResultSet numReservedOnF1Rs = numReservedOnF1Stmt.executeQuery();
-      numReservedOnF1Rs.next();
-      int numReservedOnF1 = numReservedOnF1Rs.getInt("count");
-      numReservedOnF1Rs.close();
-      if (f2 == null) {
-        return numReservedOnF1 < this.f1.capacity;
-      } else {
-        numReservedOnF2Stmt.clearParameters();
-        numReservedOnF2Stmt.setInt(1, this.f2.fid);
-        ResultSet numReservedOnF2Rs = numReservedOnF2Stmt.executeQuery();
-        numReservedOnF2Rs.next();
-        int numReservedOnF2 = numReservedOnF2Rs.getInt("count");
-        numReservedOnF2Rs.close();
-        return numReservedOnF1 < f1.capacity && numReservedOnF2 < f2.capacity;
+  /**
+   * Keeps the best (lowest by Itinerary.compareTo) limit itineraries offered to it, in a
+   * max-heap so that the worst one kept is always on top
+   */
+  static class ItineraryHeap {
+    private final int limit;
+    private final PriorityQueue<Itinerary> heap;
+
+    ItineraryHeap(int limit) {
+      this.limit = limit;
+      this.heap = new PriorityQueue<>(limit + 1, Collections.reverseOrder());
+    }
+
+    // Returns true if an indirect itinerary with these values would be kept if offered,
+    // so callers can skip building ones that wouldn't
+    boolean admits(int totalTime, int f1Id, int f2Id) {
+      if (heap.size() < limit) return true;
+      Itinerary worst = heap.peek();
+      if (totalTime != worst.totalTime) return totalTime < worst.totalTime;
+      if (f1Id != worst.fid(0)) return f1Id < worst.fid(0);
+      return !worst.isDirect() && f2Id < worst.fid(1);
+    }
+
+    // Returns the largest total time an itinerary can have and still be kept if offered
+    int maxTotalTime() {
+      return (heap.size() < limit) ? Integer.MAX_VALUE : heap.peek().totalTime;
+    }
+
+    void offer(Itinerary itinerary) {
+      if (heap.size() < limit) {
+        heap.add(itinerary);
+      } else if (itinerary.compareTo(heap.peek()) < 0) {
+        heap.poll();
+        heap.add(itinerary);
       }
     }
+
+    // Returns the kept itineraries in ascending order
+    List<Itinerary> toSortedList() {
+      List<Itinerary> sorted = new ArrayList<>(heap);
+      Collections.sort(sorted);
+      return sorted;
+    }
   }
 
   /**
    * A class to store information about a single flight
    */
-  class Flight {
+  static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
-    public String flightNum;
+    public int flightNum;
     public String originCity;
     public String destCity;
     public int time;
     public int capacity;
     public int price;
 
-    // Given flight id, retrieves rest of flight information, constructs new Flight
-    // Throws IllegalArgumentException if no flight with id found
-    Flight(int id) throws SQLException {
-      getFlightStmt.clearParameters();
-      getFlightStmt.setInt(1, id);
-      ResultSet flightRs = getFlightStmt.executeQuery();
-      if (!flightRs.next()) throw new IllegalArgumentException("No flight with id " + id + " found\n");
-
-      fid = flightRs.getInt("fid");
-      dayOfMonth = flightRs.getInt("day_of_month");
-      carrierId = flightRs.getString("cid");
-      flightNum = flightRs.getInt("op_carrier_flight_num") + "";
-      originCity = flightRs.getString("origin_city");
-      destCity = flightRs.getString("dest_city");
-      time = flightRs.getInt("duration_mins");
-      capacity = getCapacity(flightRs.getString("tail_num"));
-      price = flightRs.getInt("price");
-
-      flightRs.close();
-    }
-
-    Flight(int id, int day, String carrier, String fnum, String origin, String dest, int tm,
+    Flight(int id, int day, String carrier, int fnum, String origin, String dest, int tm,
            int cap, int pri) {
       fid = id;
       dayOfMonth = day;
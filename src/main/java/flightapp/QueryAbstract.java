@@ -3,6 +3,7 @@ package flightapp;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.*;
+import java.util.List;
 import java.util.Properties;
 
 public abstract class QueryAbstract {
@@ -96,8 +97,9 @@ public abstract class QueryAbstract {
    *
    * Searches for flights from the given origin city to the given destination city, on the given
    * day of the month. If {@code directFlight} is true, it only searches for direct flights,
-   * otherwise is searches for direct flights and flights with two "hops." Only searches for up
-   * to the number of itineraries given by {@code numberOfItineraries}.
+   * otherwise is searches for direct flights and flights with two "hops" (or as many as
+   * flightapp.max_legs allows). Only searches for up to the number of itineraries given by
+   * {@code numberOfItineraries}.
    *
    * The results are sorted based on total flight time.
    *
@@ -135,6 +137,37 @@ public abstract class QueryAbstract {
                                             boolean directFlight, int dayOfMonth,
                                             int numberOfItineraries);
 
+  /**
+   * Searches for flights like {@link #search}, but on any day from {@code firstDay} through
+   * {@code lastDay}, fetching the flights for the whole range at once.
+   *
+   * @param firstDay            first day of the month to search, inclusive
+   * @param lastDay             last day of the month to search, inclusive; at most 30 days after
+   *                            {@code firstDay}
+   * @param bestPerDay          if true, return up to {@code numberOfItineraries} itineraries for
+   *                            each day, otherwise up to {@code numberOfItineraries} in all
+   *
+   * @return The same as {@link #search}, except that if {@code bestPerDay} is true the
+   *         itineraries are grouped by day, in order, and each group is preceded by a "Day
+   *         [day of the month]:\n" line. Itinerary numbers run across all of the groups.
+   *
+   * @see #search
+   */
+  public final String searchDays(String originCity, String destinationCity, boolean directFlight,
+                                 int firstDay, int lastDay, int numberOfItineraries,
+                                 boolean bestPerDay) {
+    try {
+      return transaction_searchDays(originCity, destinationCity, directFlight, firstDay, lastDay,
+                                    numberOfItineraries, bestPerDay);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  public abstract String transaction_searchDays(String originCity, String destinationCity,
+                                                boolean directFlight, int firstDay, int lastDay,
+                                                int numberOfItineraries, boolean bestPerDay);
+
   /**
    * Reserves (but doesn't pay for) an itinerary generated from a previous search.
    *
@@ -165,6 +198,33 @@ public abstract class QueryAbstract {
 
   public abstract String transaction_book(int itineraryId);
 
+  /**
+   * Reserves several itineraries from a previous search at once, each for one or more
+   * passengers, in a single transaction: either all of them are booked or none are.
+   *
+   * @param itineraryIds IDs of the itineraries to book, each returned by search in the current
+   *                     session and each on a different day
+   * @param passengers   number of seats to book on every flight of every itinerary, must be
+   *                     positive
+   *
+   * @return The same errors as {@link #book}, for the first itinerary that causes one.
+   *
+   *         If booking succeeds, return one "Booked flight(s), reservation ID: [reservationId]\n"
+   *         line for each itinerary, in the order given. Each reservation holds all of the
+   *         passengers' seats and costs its price times {@code passengers}.
+   *
+   * @see #book()
+   */
+  public final String bookBatch(List<Integer> itineraryIds, int passengers) {
+    try {
+      return transaction_bookBatch(itineraryIds, passengers);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  public abstract String transaction_bookBatch(List<Integer> itineraryIds, int passengers);
+
   /**
    * Pays for a previously-reserved itinerary
    *
@@ -193,6 +253,48 @@ public abstract class QueryAbstract {
 
   public abstract String transaction_pay(int reservationId);
 
+  /**
+   * Pays for several previously-reserved itineraries at once, in a single transaction: either
+   * all of them are paid for or none are.
+   *
+   * @param reservationIds the reservations to pay for
+   *
+   * @return The same errors as {@link #pay}, for the first reservation in {@code
+   *         reservationIds} that can't be found, or for the total cost of all of them if the
+   *         user can't afford it ("User has only [balance] in account but itineraries cost
+   *         [cost]\n").
+   *
+   *         If successful, return one "Paid reservation: [reservationId] remaining balance:
+   *         [balance]\n" line for each reservation, in order of reservation ID, with the
+   *         balance left after paying for it and those before it.
+   *
+   * @see #pay()
+   */
+  public final String payBatch(List<Integer> reservationIds) {
+    try {
+      return transaction_payBatch(reservationIds);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Pays for every unpaid reservation of the logged-in user at once, like {@link #payBatch}.
+   *
+   * @return The same as {@link #payBatch}, except that if the user has no unpaid reservations,
+   *         return "No unpaid reservations found\n".
+   */
+  public final String payAll() {
+    try {
+      return transaction_payBatch(null);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  // Pays for the reservations in reservationIds, or every unpaid one if it's null
+  public abstract String transaction_payBatch(List<Integer> reservationIds);
+
   /**
    * Prints out reserved itineraries, regardless of their payment status. 
   *
@@ -222,6 +324,33 @@ public abstract class QueryAbstract {
 
   public abstract String transaction_reservations();
 
+  /**
+   * Writes out a page of the logged-in user's reservations, as they're read, without holding
+   * the rest in memory.
+   *
+   * @param afterRid only reservations with IDs greater than this are listed; 0 for the first
+   *                 page
+   * @param limit    most reservations to list, must be positive
+   * @param out      where to write them, such as the session's writer
+   *
+   * @return Nothing, but writes the same as {@link #reservations} for the page to {@code out}.
+   *         If the page is full, it's followed by "Next page: reservations after [last
+   *         reservation ID] limit [limit]\n". If a failure happens partway, "Failed to retrieve
+   *         reservations\n" follows whatever was already written.
+   *
+   * @see #reservations()
+   */
+  public final void reservationsPage(int afterRid, int limit, Appendable out) throws IOException {
+    try {
+      transaction_reservationsPage(afterRid, limit, out);
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  public abstract void transaction_reservationsPage(int afterRid, int limit, Appendable out)
+      throws IOException;
+
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
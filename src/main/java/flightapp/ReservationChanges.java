@@ -0,0 +1,36 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Folds the ResChanges_cartierc rows back into User_cartierc.resVersion.
+ *
+ * Changes to a user's reservations (bookings, payments, expired holds) don't update their row:
+ * each appends a row to ResChanges_cartierc, and a user's resVersion is their row's plus their
+ * number of changes (see ReservationView).  So a payment never writes the row its user's
+ * balance also lives on, and bookings and payments don't queue up behind each other there.
+ *
+ * Compaction moves the oldest changes into the rows in one statement, so a version read before
+ * or after it comes out the same.
+ */
+public class ReservationChanges {
+  // Deletes up to LIMIT of the oldest changes and adds their count to their users' rows,
+  // returning how many were folded
+  private static final String COMPACT_SQL = "WITH Folded AS (DELETE FROM ResChanges_cartierc WHERE id IN " +
+                                            "(SELECT id FROM ResChanges_cartierc ORDER BY id LIMIT ?) " +
+                                            "RETURNING username), " +
+                                            "Updated AS (UPDATE User_cartierc AS U SET resVersion = U.resVersion + F.changes " +
+                                            "FROM (SELECT username, COUNT(*) AS changes FROM Folded GROUP BY username) AS F " +
+                                            "WHERE U.username = F.username RETURNING U.username) " +
+                                            "SELECT COUNT(*) AS folded FROM Folded";
+
+  private ReservationChanges() { }
+
+  /**
+   * Folds every change into its user's row, batchSize at a time, over conn (which must be in
+   * auto-commit mode, so each batch is its own transaction).  Returns how many were folded.
+   */
+  public static int compact(Connection conn, int batchSize) throws SQLException {
+    return MaintenanceScheduler.runInBatches(conn, COMPACT_SQL, batchSize);
+  }
+}
@@ -0,0 +1,98 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * One session's copy of a user's reservations, as of a version of their resVersion.
+ *
+ * Every change to a user's reservations, by any session (or by hold expiry), adds to their
+ * resVersion (their row's, plus their ResChanges_cartierc rows; see ReservationChanges), so
+ * the view is current exactly when its version matches the user's.  A session's
+ * own bookings and payments update the view in place when they bump the version by one from
+ * the view's, meaning nobody else changed the reservations in between; otherwise the view has
+ * to be reloaded.
+ *
+ * Not thread-safe; each session has its own.
+ */
+public class ReservationView {
+  private final TreeMap<Integer, Reservation> reservations = new TreeMap<>();
+  private long version;
+
+  /**
+   * Creates an empty view as of version
+   */
+  public ReservationView(long version) {
+    this.version = version;
+  }
+
+  /**
+   * Returns the resVersion the view is current as of
+   */
+  public long version() {
+    return version;
+  }
+
+  /**
+   * Moves the view up to version, after applying the change that produced it
+   */
+  public void setVersion(long version) {
+    this.version = version;
+  }
+
+  /**
+   * Adds reservation rid, holding seats seats on flights (each as printed by
+   * Query.Flight.toString()), that expires at holdExpiresMillis unless paid for (0 if it never
+   * does)
+   */
+  public void add(int rid, boolean paid, int seats, List<String> flights, long holdExpiresMillis) {
+    reservations.put(rid, new Reservation(paid, seats, flights, holdExpiresMillis));
+  }
+
+  /**
+   * Marks reservation rid paid for, if it's in the view
+   */
+  public void markPaid(int rid) {
+    Reservation reservation = reservations.get(rid);
+    if (reservation != null) {
+      reservation.paid = true;
+      reservation.holdExpiresMillis = 0;
+    }
+  }
+
+  /**
+   * Writes out the reservations, in order of rid, in the same format as
+   * Query.transaction_reservations(), leaving out holds that expired by nowMillis.  Returns how
+   * many were written.
+   */
+  public int writeTo(Appendable out, long nowMillis) throws IOException {
+    int written = 0;
+    for (Map.Entry<Integer, Reservation> entry : reservations.entrySet()) {
+      Reservation reservation = entry.getValue();
+      if (reservation.holdExpiresMillis != 0 && reservation.holdExpiresMillis < nowMillis) continue;
+
+      out.append("Reservation " + entry.getKey() + " paid: " + reservation.paid);
+      if (reservation.seats > 1) out.append(" seats: " + reservation.seats);
+      out.append(":\n");
+      for (String flight : reservation.flights) {
+        out.append(flight + "\n");
+      }
+      written++;
+    }
+    return written;
+  }
+
+  private static class Reservation {
+    boolean paid;
+    final int seats;
+    final List<String> flights;
+    long holdExpiresMillis;
+
+    Reservation(boolean paid, int seats, List<String> flights, long holdExpiresMillis) {
+      this.paid = paid;
+      this.seats = seats;
+      this.flights = flights;
+      this.holdExpiresMillis = holdExpiresMillis;
+    }
+  }
+}
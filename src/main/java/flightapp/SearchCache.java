@@ -0,0 +1,178 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded, thread-safe cache of search results shared by every session in the JVM.
+ *
+ * Entries are evicted least-recently-used first once the cache is full, and expire after a
+ * fixed time to live.  Results depend only on the flight schedule (capacity is a property of
+ * the aircraft, not of how many seats are booked), so bookings never invalidate an entry;
+ * invalidateAll() is called when the tables are cleared or a refresh changes capacities (see
+ * CapacityResolver).  A change to Flights itself isn't noticed, so an entry can be stale for
+ * up to its time to live.
+ */
+public class SearchCache<V> {
+  private final int maxEntries;
+  private final long ttlNanos;  // 0 means entries never expire
+  private final LongSupplier clock;
+
+  // Guarded by this; iteration order is least- to most-recently used
+  private final LinkedHashMap<Key, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Creates a cache holding at most maxEntries results for up to ttlSecs seconds each
+   * (forever if ttlSecs is 0)
+   */
+  public SearchCache(int maxEntries, long ttlSecs) {
+    this(maxEntries, ttlSecs, System::nanoTime);
+  }
+
+  // Lets tests control time
+  SearchCache(int maxEntries, long ttlSecs, LongSupplier clock) {
+    if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+    if (ttlSecs < 0) throw new IllegalArgumentException("ttlSecs must not be negative");
+
+    this.maxEntries = maxEntries;
+    this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSecs);
+    this.clock = clock;
+    this.entries = new LinkedHashMap<Key, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry<V>> eldest) {
+        if (size() <= SearchCache.this.maxEntries) return false;
+        evictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached result for key, or null if there isn't a live one
+   */
+  public synchronized V get(Key key) {
+    Entry<V> entry = entries.get(key);
+    if (entry != null && ttlNanos > 0 && clock.getAsLong() - entry.createdAt >= ttlNanos) {
+      entries.remove(key);
+      evictions.incrementAndGet();
+      entry = null;
+    }
+
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.value;
+  }
+
+  /**
+   * Caches value as the result for key, evicting the least-recently-used entry if full.
+   * value must not be modified afterwards, since every session shares it.
+   */
+  public synchronized void put(Key key, V value) {
+    entries.put(key, new Entry<>(value, clock.getAsLong()));
+  }
+
+  /**
+   * Drops every cached result
+   */
+  public synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long hits() {
+    return hits.get();
+  }
+
+  public long misses() {
+    return misses.get();
+  }
+
+  public long evictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "SearchCache[size=" + size() + ", hits=" + hits() + ", misses=" + misses()
+        + ", evictions=" + evictions() + "]";
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long createdAt;
+
+    Entry(V value, long createdAt) {
+      this.value = value;
+      this.createdAt = createdAt;
+    }
+  }
+
+  /**
+   * The parameters of a single search, with cities as Dictionary.CITIES ids
+   */
+  public static class Key {
+    private final int originCity;
+    private final int destCity;
+    private final boolean directFlight;
+    private final int firstDay;
+    private final int lastDay;
+    private final boolean bestPerDay;
+    private final int numberOfItineraries;
+
+    /**
+     * Creates the key of a search on a single day
+     */
+    public Key(int originCity, int destCity, boolean directFlight, int dayOfMonth,
+               int numberOfItineraries) {
+      this(originCity, destCity, directFlight, dayOfMonth, dayOfMonth, false, numberOfItineraries);
+    }
+
+    /**
+     * Creates the key of a search over firstDay through lastDay
+     */
+    public Key(int originCity, int destCity, boolean directFlight, int firstDay, int lastDay,
+               boolean bestPerDay, int numberOfItineraries) {
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.directFlight = directFlight;
+      this.firstDay = firstDay;
+      this.lastDay = lastDay;
+      this.bestPerDay = bestPerDay;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key other = (Key) o;
+      return originCity == other.originCity && destCity == other.destCity
+          && directFlight == other.directFlight && firstDay == other.firstDay
+          && lastDay == other.lastDay && bestPerDay == other.bestPerDay
+          && numberOfItineraries == other.numberOfItineraries;
+    }
+
+    @Override
+    public int hashCode() {
+      int h = originCity;
+      h = 31 * h + destCity;
+      h = 31 * h + (directFlight ? 1 : 0);
+      h = 31 * h + firstDay;
+      h = 31 * h + lastDay;
+      h = 31 * h + (bestPerDay ? 1 : 0);
+      return 31 * h + numberOfItineraries;
+    }
+  }
+}
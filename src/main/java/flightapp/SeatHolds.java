@@ -0,0 +1,104 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Releases the seats of unpaid reservations whose hold has expired (see flightapp.hold_ttl_secs).
+ *
+ * An expired hold is deleted, along with its flights after the 2nd, its seats are returned to
+ * Seats_cartierc, and the change is recorded in ResChanges_cartierc, all in one statement.  Holds are found
+ * through the partial index on Reservation_cartierc.holdExpires, oldest first, and rows
+ * another transaction has locked are skipped rather than waited on, so the background expiry
+ * never blocks a booking or payment.
+ *
+ * A session that books with holds enabled keeps a SeatHolds of its own, whose statements are
+ * prepared once on its connection, to release holds that stand in the way of a booking.
+ */
+public class SeatHolds {
+  // Which expired holds to release; each is ANDed with the expiry condition
+  private static final String ALL_SCOPE = "TRUE";
+  private static final String FLIGHT_SCOPE = "(f1id = ? OR f2id = ? OR rid IN " +
+                                             "(SELECT rid FROM ReservationLeg_cartierc WHERE fid = ?))";
+  private static final String USER_DAY_SCOPE = "username = ? AND travelDay = ?";
+
+  private static final String EXPIRE_ALL_SQL = expireSql(ALL_SCOPE);
+  private static final String EXPIRE_ON_FLIGHT_SQL = expireSql(FLIGHT_SCOPE);
+  private static final String EXPIRE_FOR_USER_DAY_SQL = expireSql(USER_DAY_SCOPE);
+
+  // The most holds the scoped releases, which run inside a booking, will release at once
+  private static final int SCOPED_LIMIT = 100;
+
+  private final PreparedStatement expireOnFlightStmt;
+  private final PreparedStatement expireForUserDayStmt;
+
+  /**
+   * Prepares the statements for releasing holds as part of transactions on conn
+   */
+  public SeatHolds(Connection conn) throws SQLException {
+    expireOnFlightStmt = conn.prepareStatement(EXPIRE_ON_FLIGHT_SQL);
+    expireForUserDayStmt = conn.prepareStatement(EXPIRE_FOR_USER_DAY_SQL);
+  }
+
+  // Returns a statement that releases up to LIMIT expired holds matching scope (whose
+  // parameters come first), returning how many it released
+  private static String expireSql(String scope) {
+    return "WITH Expired AS (SELECT rid, seats FROM Reservation_cartierc " +
+           "WHERE isPaidFor = 0 AND holdExpires < now() AND " + scope + " " +
+           "ORDER BY holdExpires LIMIT ? FOR UPDATE SKIP LOCKED), " +
+           "Legs AS (DELETE FROM ReservationLeg_cartierc AS L USING Expired AS E WHERE L.rid = E.rid " +
+           "RETURNING L.fid, E.seats), " +
+           "Res AS (DELETE FROM Reservation_cartierc AS R USING Expired AS E WHERE R.rid = E.rid " +
+           "RETURNING R.username, R.f1id, R.f2id, R.seats), " +
+           "Freed AS (SELECT f1id AS fid, seats FROM Res " +
+           "UNION ALL SELECT f2id, seats FROM Res WHERE f2id IS NOT NULL " +
+           "UNION ALL SELECT fid, seats FROM Legs), " +
+           "Returned AS (UPDATE Seats_cartierc AS S SET remaining = S.remaining + F.seats " +
+           "FROM (SELECT fid, SUM(seats) AS seats FROM Freed GROUP BY fid) AS F " +
+           "WHERE S.fid = F.fid RETURNING S.fid), " +
+           "Changed AS (INSERT INTO ResChanges_cartierc (username) " +
+           "SELECT DISTINCT username FROM Res RETURNING username) " +
+           "SELECT COUNT(*) AS released FROM Res";
+  }
+
+  /**
+   * Releases every expired hold, batchSize at a time, over conn (which must be in auto-commit
+   * mode, so each batch is its own transaction).  Returns how many were released.
+   */
+  public static int expireAll(Connection conn, int batchSize) throws SQLException {
+    return MaintenanceScheduler.runInBatches(conn, EXPIRE_ALL_SQL, batchSize);
+  }
+
+  /**
+   * Releases the expired holds on flight fid, as part of the connection's current
+   * transaction.  Returns true if any seats were returned to it.
+   */
+  public boolean expireOnFlight(int fid) throws SQLException {
+    expireOnFlightStmt.clearParameters();
+    expireOnFlightStmt.setInt(1, fid);
+    expireOnFlightStmt.setInt(2, fid);
+    expireOnFlightStmt.setInt(3, fid);
+    expireOnFlightStmt.setInt(4, SCOPED_LIMIT);
+    return released(expireOnFlightStmt) > 0;
+  }
+
+  /**
+   * Releases username's expired hold on travelDay, as part of the connection's current
+   * transaction.  Returns true if there was one.
+   */
+  public boolean expireFor(String username, int travelDay) throws SQLException {
+    expireForUserDayStmt.clearParameters();
+    expireForUserDayStmt.setString(1, username);
+    expireForUserDayStmt.setInt(2, travelDay);
+    expireForUserDayStmt.setInt(3, SCOPED_LIMIT);
+    return released(expireForUserDayStmt) > 0;
+  }
+
+  // Runs one of the expire statements, returning how many holds it released
+  private static int released(PreparedStatement stmt) throws SQLException {
+    ResultSet rs = stmt.executeQuery();
+    rs.next();
+    int released = rs.getInt("released");
+    rs.close();
+    return released;
+  }
+}
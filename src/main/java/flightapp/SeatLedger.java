@@ -0,0 +1,158 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory count of the seats left on each flight booked through this JVM, checked before
+ * a booking goes to the database.
+ *
+ * Each flight's slot holds how many more bookings may be sent to the database for it: the
+ * seats Seats_cartierc had left when the slot was seeded, less the bookings admitted since.
+ * Slots are updated by compare-and-set, so admitting a booking never blocks and never touches
+ * the database, and a sold-out flight is rejected without any SQL.  The database still has
+ * the final say: the ledger only stops bookings that are certain to fail.
+ *
+ * Other JVMs booking the same flights can leave a slot too high, which only costs a failed
+ * transaction (after which the slot is marked sold out).  Seats coming free can leave it too
+ * low, which reconcile() corrects.
+ */
+public class SeatLedger {
+  private static final String REMAINING_SQL = "SELECT fid, remaining FROM Seats_cartierc WHERE fid = ANY(?)";
+
+  private final ConcurrentHashMap<Integer, Slot> slots = new ConcurrentHashMap<>();
+
+  /**
+   * Returns true if fid has a slot, so tryAcquire would check it
+   */
+  public boolean isTracked(int fid) {
+    return slots.containsKey(fid);
+  }
+
+  /**
+   * Starts tracking fid with remaining seats left, unless it's already tracked
+   */
+  public void seed(int fid, int remaining) {
+    slots.putIfAbsent(fid, new Slot(remaining));
+  }
+
+  /**
+   * Admits a booking on every flight in fids, or on none of them if any tracked one has no
+   * seats left to admit.  Untracked flights are always admitted.  Every successful call must be
+   * followed by either commit(fids) or release(fids).
+   */
+  public boolean tryAcquire(int[] fids) {
+    for (int i = 0; i < fids.length; i++) {
+      Slot slot = slots.get(fids[i]);
+      if (slot != null && !slot.tryAcquire()) {
+        for (int j = 0; j < i; j++) {
+          release(fids[j]);
+        }
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records that the bookings admitted on fids were committed
+   */
+  public void commit(int[] fids) {
+    for (int fid : fids) {
+      Slot slot = slots.get(fid);
+      if (slot != null) slot.inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the seats admitted on fids, whose booking didn't go through
+   */
+  public void release(int[] fids) {
+    for (int fid : fids) {
+      release(fid);
+    }
+  }
+
+  private void release(int fid) {
+    Slot slot = slots.get(fid);
+    if (slot != null) {
+      slot.inFlight.decrementAndGet();
+      slot.available.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records that the database had no seats left on fid.  Bookings already admitted on it
+   * will fail too, so the slot only gets back to 0 as they're released.
+   */
+  public void markSoldOut(int fid) {
+    Slot slot = slots.get(fid);
+    if (slot != null) slot.available.set(-slot.inFlight.get());
+  }
+
+  /**
+   * Drops every slot, such as after the reservation tables are cleared
+   */
+  public void clear() {
+    slots.clear();
+  }
+
+  /**
+   * Corrects every slot against the seats Seats_cartierc says are left, over conn.  A slot is
+   * only ever raised (when seats have come free) or set to sold out: lowering it otherwise
+   * could count a booking that has committed but not yet called commit() twice, and reject a
+   * booking that would have succeeded.
+   */
+  public void reconcile(Connection conn) throws SQLException {
+    if (slots.isEmpty()) return;
+
+    PreparedStatement stmt = conn.prepareStatement(REMAINING_SQL);
+    stmt.setArray(1, conn.createArrayOf("integer", slots.keySet().toArray()));
+    ResultSet rs = stmt.executeQuery();
+    while (rs.next()) {
+      Slot slot = slots.get(rs.getInt("fid"));
+      if (slot != null) slot.reconcile(rs.getInt("remaining"));
+    }
+    rs.close();
+    stmt.close();
+  }
+
+  // Returns how many more bookings on fid would be admitted, or null if it isn't tracked
+  Integer available(int fid) {
+    Slot slot = slots.get(fid);
+    return (slot == null) ? null : slot.available.get();
+  }
+
+  private static class Slot {
+    // Bookings that may still be admitted; negative while admitted ones drain after a sell-out
+    final AtomicInteger available;
+    // Bookings admitted but not yet committed or released
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    Slot(int remaining) {
+      available = new AtomicInteger(remaining);
+    }
+
+    boolean tryAcquire() {
+      while (true) {
+        int seats = available.get();
+        if (seats <= 0) return false;
+        if (available.compareAndSet(seats, seats - 1)) {
+          inFlight.incrementAndGet();
+          return true;
+        }
+      }
+    }
+
+    void reconcile(int remaining) {
+      int expected = remaining - inFlight.get();
+      if (remaining <= 0) {
+        available.accumulateAndGet(expected, Math::min);
+      } else {
+        available.accumulateAndGet(expected, Math::max);
+      }
+    }
+  }
+}
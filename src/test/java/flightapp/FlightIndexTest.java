@@ -0,0 +1,175 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightIndexTest extends TestCase {
+  private final int a = Dictionary.CITIES.intern("Index Test A");
+  private final int b = Dictionary.CITIES.intern("Index Test B");
+  private final int c = Dictionary.CITIES.intern("Index Test C");
+  private final int d = Dictionary.CITIES.intern("Index Test D");
+  private final int carrier = Dictionary.CARRIERS.intern("IT");
+
+  public FlightIndexTest() { }
+
+  // Returns the flight ids of every itinerary forEachPath finds, in the order it finds them,
+  // stopping at itineraries longer than maxTotalTime
+  private static List<String> paths(FlightIndex index, int origin, int dest, int maxLegs,
+                                    int maxTotalTime) {
+    List<String> found = new ArrayList<>();
+    index.forEachPath(1, origin, dest, 2, maxLegs, new FlightIndex.PathConsumer() {
+      public int maxTotalTime() {
+        return maxTotalTime;
+      }
+
+      public void accept(int[] rows, int totalTime) {
+        StringBuilder fids = new StringBuilder(totalTime + ":");
+        for (int row : rows) {
+          fids.append(" ").append(index.store().fid(row));
+        }
+        found.add(fids.toString());
+      }
+    });
+    return found;
+  }
+
+  // Returns the total time and flight ids of an itinerary
+  private static String describe(Query.Itinerary itinerary) {
+    StringBuilder fids = new StringBuilder(itinerary.totalTime + ":");
+    for (int leg = 0; leg < itinerary.numFlights(); leg++) {
+      fids.append(" ").append(itinerary.fid(leg));
+    }
+    return fids.toString();
+  }
+
+  // Returns the best limit one-stop itineraries forEachOneStop finds, ranked the way Query
+  // ranks them in "index" search mode
+  private static List<String> rankedOneStops(FlightIndex index, int day, int origin, int dest,
+                                             int limit) {
+    FlightStore store = index.store();
+    Query.ItineraryHeap best = new Query.ItineraryHeap(limit);
+    index.forEachOneStop(day, origin, dest, (f1, f2) -> {
+      if (best.admits(store.time(f1) + store.time(f2), store.fid(f1), store.fid(f2))) {
+        best.offer(new Query.Itinerary(store, f1, f2));
+      }
+    });
+    List<String> found = new ArrayList<>();
+    for (Query.Itinerary itinerary : best.toSortedList()) {
+      found.add(describe(itinerary));
+    }
+    return found;
+  }
+
+  private FlightIndex index() {
+    FlightStore flights = new FlightStore();
+    flights.add(1, 1, carrier, 1, a, b, 60, 100, 100);
+    flights.add(2, 1, carrier, 2, b, d, 60, 100, 100);
+    flights.add(3, 1, carrier, 3, a, c, 10, 100, 100);
+    flights.add(4, 1, carrier, 4, c, b, 10, 100, 100);
+    flights.add(5, 1, carrier, 5, b, a, 10, 100, 100);
+    flights.add(6, 1, carrier, 6, a, d, 300, 100, 100);
+    flights.add(7, 2, carrier, 7, a, b, 1, 100, 100);
+    return new FlightIndex(flights);
+  }
+
+  @Test
+  public void testFindsConnectionsShortestFirst() {
+    // The direct flight 6 is never passed on, and a to c to b to a to ... would revisit a.
+    assertEquals(Arrays.asList("80: 3 4 2", "120: 1 2"), paths(index(), a, d, 3, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testLimitsLegs() {
+    assertEquals(Arrays.asList("120: 1 2"), paths(index(), a, d, 2, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testStopsAtMaxTotalTime() {
+    assertEquals(Arrays.asList("80: 3 4 2"), paths(index(), a, d, 3, 100));
+  }
+
+  @Test
+  public void testOrdersManyConnections() {
+    // More partial itineraries than the frontier starts out holding, added slowest first,
+    // alongside a dead end that can't reach d.
+    FlightStore flights = new FlightStore();
+    for (int fid = 1; fid <= 100; fid++) {
+      flights.add(fid, 1, carrier, fid, a, b, 200 - fid, 100, 100);
+    }
+    flights.add(101, 1, carrier, 101, b, d, 10, 100, 100);
+    flights.add(102, 1, carrier, 102, a, c, 1, 100, 100);
+    List<String> found = paths(new FlightIndex(flights), a, d, 2, Integer.MAX_VALUE);
+
+    assertEquals(100, found.size());
+    assertEquals("110: 100 101", found.get(0));
+    assertEquals("209: 1 101", found.get(99));
+  }
+
+  @Test
+  public void testReturnsToOrigin() {
+    assertEquals(Arrays.asList("30: 3 4 5", "70: 1 5"), paths(index(), a, a, 3, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testRanksDirectsByTimeThenFid() {
+    FlightStore flights = new FlightStore();
+    flights.add(9, 1, carrier, 9, a, d, 50, 100, 100);
+    flights.add(8, 1, carrier, 8, a, d, 50, 100, 100);
+    flights.add(7, 1, carrier, 7, a, d, 70, 100, 100);
+    flights.add(6, 1, carrier, 6, a, d, 40, 100, 100);
+    flights.add(5, 2, carrier, 5, a, d, 10, 100, 100);  // another day
+    flights.add(4, 1, carrier, 4, a, b, 10, 100, 100);  // somewhere else
+    FlightIndex index = new FlightIndex(flights);
+
+    List<Query.Itinerary> directs = new ArrayList<>();
+    index.forEachDirect(1, a, d, row -> directs.add(new Query.Itinerary(index.store(), row)));
+    Collections.sort(directs);
+
+    List<String> found = new ArrayList<>();
+    for (Query.Itinerary itinerary : directs) {
+      found.add(describe(itinerary));
+    }
+    assertEquals(Arrays.asList("40: 6", "50: 8", "50: 9", "70: 7"), found);
+  }
+
+  @Test
+  public void testConnectsOneStopsOnTheSameDayOnly() {
+    FlightStore flights = new FlightStore();
+    flights.add(1, 1, carrier, 1, a, b, 10, 100, 100);
+    flights.add(2, 1, carrier, 2, b, d, 10, 100, 100);
+    flights.add(3, 2, carrier, 3, b, d, 1, 100, 100);   // connects, but the next day
+    flights.add(4, 1, carrier, 4, c, d, 1, 100, 100);   // doesn't leave from b
+    flights.add(5, 1, carrier, 5, a, d, 1, 100, 100);   // direct, not a one-stop
+    flights.add(6, 1, carrier, 6, b, c, 1, 100, 100);   // doesn't reach d
+    flights.add(7, 2, carrier, 7, a, c, 1, 100, 100);   // reaches c, but the next day
+    assertEquals(Arrays.asList("20: 1 2"), rankedOneStops(new FlightIndex(flights), 1, a, d, 10));
+  }
+
+  @Test
+  public void testRanksOneStopsByTimeThenFids() {
+    FlightStore flights = new FlightStore();
+    flights.add(10, 1, carrier, 10, a, b, 30, 100, 100);
+    flights.add(11, 1, carrier, 11, a, b, 30, 100, 100);
+    flights.add(12, 1, carrier, 12, b, d, 30, 100, 100);
+    flights.add(13, 1, carrier, 13, b, d, 20, 100, 100);
+    flights.add(14, 1, carrier, 14, a, c, 5, 100, 100);
+    flights.add(15, 1, carrier, 15, c, d, 45, 100, 100);
+    FlightIndex index = new FlightIndex(flights);
+
+    assertEquals(Arrays.asList("50: 10 13", "50: 11 13", "50: 14 15", "60: 10 12", "60: 11 12"),
+                 rankedOneStops(index, 1, a, d, 10));
+    // only the best are kept, ties going to the lower first and then second flight id
+    assertEquals(Arrays.asList("50: 10 13", "50: 11 13"), rankedOneStops(index, 1, a, d, 2));
+  }
+
+  @Test
+  public void testOneStopsCanReturnToOrigin() {
+    FlightStore flights = new FlightStore();
+    flights.add(1, 1, carrier, 1, a, b, 10, 100, 100);
+    flights.add(2, 1, carrier, 2, b, a, 20, 100, 100);
+    assertEquals(Arrays.asList("30: 1 2"), rankedOneStops(new FlightIndex(flights), 1, a, a, 10));
+  }
+}
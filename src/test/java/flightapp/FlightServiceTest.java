@@ -102,6 +102,14 @@ public class FlightServiceTest {
    */
   private static final String TEST_CASE_PROPNAME = "flightapp.testcases";
 
+  /**
+   * The search modes every search test case is also run under (see runTestUnderSearchModes).
+   * "index" loads Flights only once per JVM, but no test changes Flights.
+   */
+  private static final String SEARCH_MODE_PROPNAME = "flightapp.search_mode";
+  private static final String[] SEARCH_MODES = {"sql", "combined", "index"};
+  private static final String SEARCH_CASES_DIR = "search";
+
   /**
    * Whether to dump detailed failure messages in the test assertion for
    * ALL tests, or just the ones not annotated with PRIVATE_TEST_MARKER.
@@ -456,7 +464,46 @@ public class FlightServiceTest {
   @Test
   public void runTest() throws Exception {
     System.out.println("Running test file: " + this.file);
+    runScenario(true);
+  }
+
+  /**
+   * Runs a search test case scenario again under each of SEARCH_MODES, so that the modes can't
+   * drift apart (in ranking or tie-breaking, say).  Skipped unless dbconn.properties leaves
+   * the mode to the flightapp.search_mode system property and the search cache is off, since
+   * otherwise every run would search the same way.
+   */
+  @Test
+  public void runTestUnderSearchModes() throws Exception {
+    Assume.assumeTrue(Paths.get(this.file).getParent().getFileName().toString().equals(SEARCH_CASES_DIR));
+    Assume.assumeTrue(Integer.parseInt(DBConnUtils.getProperty("flightapp.search_cache_size", "0")) <= 0);
+
+    String previousMode = System.getProperty(SEARCH_MODE_PROPNAME);
+    try {
+      for (String mode : SEARCH_MODES) {
+        System.setProperty(SEARCH_MODE_PROPNAME, mode);
+        Assume.assumeTrue(mode.equals(DBConnUtils.getProperty(SEARCH_MODE_PROPNAME, null)));
+
+        System.out.println("Running test file: " + this.file + " (" + SEARCH_MODE_PROPNAME + "=" + mode + ")");
+        Query query = new Query();
+        query.clearTables();
+        query.closeConnection();
+        runScenario(false);
+      }
+    } finally {
+      if (previousMode == null) {
+        System.clearProperty(SEARCH_MODE_PROPNAME);
+      } else {
+        System.setProperty(SEARCH_MODE_PROPNAME, previousMode);
+      }
+    }
+  }
 
+  /**
+   * Runs this.file's sessions and checks their output against its expected outcomes, logging
+   * it as passed if it did and record is true
+   */
+  private void runScenario(boolean record) throws Exception {
     // Loads the scenario and initializes sessions
     List<Session> sessions = parse(this.file);
     List<Future<String>> futures = new ArrayList<>();
@@ -507,7 +554,7 @@ public class FlightServiceTest {
             this.file, formatOutput(outputs), outcomesFormatted);
         }
       } else {
-        if (report != null) {
+        if (report != null && record) {
           report.write(FilenameUtils.separatorsToUnix(this.file));
           report.newLine();
         }
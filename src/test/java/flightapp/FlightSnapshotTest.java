@@ -0,0 +1,66 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class FlightSnapshotTest extends TestCase {
+  public FlightSnapshotTest() { }
+
+  @Test
+  public void testReadsBackWhatWasWritten() throws IOException {
+    int seattle = Dictionary.CITIES.intern("Seattle WA");
+    int boston = Dictionary.CITIES.intern("Boston MA");
+    int alaska = Dictionary.CARRIERS.intern("AS");
+
+    FlightStore flights = new FlightStore();
+    flights.add(12, 2, alaska, 102, seattle, boston, 310, 200, 520);
+    flights.add(11, 1, alaska, 101, boston, seattle, 320, -1, 450);
+    flights.add(10, 1, alaska, 100, seattle, boston, 300, 150, 500);
+
+    Path path = Files.createTempFile("flights", ".snapshot");
+    try {
+      FlightSnapshot.write(new FlightIndex(flights), path);
+      FlightIndex index = FlightSnapshot.read(path);
+      assertEquals(3, index.size());
+
+      List<Integer> rows = new ArrayList<>();
+      index.forEachDirect(1, seattle, boston, rows::add);
+      assertEquals(1, rows.size());
+
+      FlightStore store = index.store();
+      int row = rows.get(0);
+      assertEquals(10, store.fid(row));
+      assertEquals(1, store.dayOfMonth(row));
+      assertEquals("AS", store.carrierId(row));
+      assertEquals(100, store.flightNum(row));
+      assertEquals("Seattle WA", store.originCity(row));
+      assertEquals("Boston MA", store.destCity(row));
+      assertEquals(300, store.time(row));
+      assertEquals(150, store.capacity(row));
+      assertEquals(500, store.price(row));
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+
+  @Test
+  public void testRejectsOtherFiles() throws IOException {
+    Path path = Files.createTempFile("flights", ".snapshot");
+    try {
+      Files.write(path, "not a snapshot".getBytes());
+      FlightSnapshot.read(path);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      Files.deleteIfExists(path);
+    }
+  }
+}
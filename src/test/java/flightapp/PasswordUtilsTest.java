@@ -48,6 +48,38 @@ public class PasswordUtilsTest extends TestCase {
     assertFalse(PasswordUtils.plaintextMatchesSaltedHash("안녕하세요", hash));
   }
 
+  @Test
+  public void testMatchesAsynchronously() throws Exception {
+    byte[] hash = PasswordUtils.saltAndHashPassword("howdy");
+
+    // The async check agrees with the blocking one, however the futures finish.
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHashAsync("howdy", hash).get());
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHashAsync("hi", hash).get());
+  }
+
+  @Test
+  public void testMatchesUnformattedHashes() {
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] saltedHash = PasswordUtils.hashWithSalt("howdy", salt);
+
+    // Hashes stored before they had a format were just the salt followed by the hash.
+    byte[] legacy = new byte[salt.length + saltedHash.length];
+    System.arraycopy(salt, 0, legacy, 0, salt.length);
+    System.arraycopy(saltedHash, 0, legacy, salt.length, saltedHash.length);
+
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("howdy", legacy));
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("hi", legacy));
+    assertTrue(PasswordUtils.needsRehash(legacy));
+  }
+
+  @Test
+  public void testNewHashesDontNeedRehash() {
+    byte[] hash = PasswordUtils.saltAndHashPassword("howdy");
+
+    // Made with the current settings, so there's nothing to upgrade.
+    assertFalse(PasswordUtils.needsRehash(hash));
+  }
+
   @Test
   public void testSaltLengthsAreConsistent() {
     byte[] salt1 = PasswordUtils.generateSalt();
@@ -0,0 +1,36 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class ReservationViewTest extends TestCase {
+  public ReservationViewTest() { }
+
+  @Test
+  public void testWritesInRidOrder() throws IOException {
+    ReservationView view = new ReservationView(3);
+    view.add(2, false, 1, Arrays.asList("flight b", "flight c"), 0);
+    view.add(1, true, 2, Arrays.asList("flight a"), 0);
+
+    StringBuilder out = new StringBuilder();
+    assertEquals(2, view.writeTo(out, 0));
+    assertEquals("Reservation 1 paid: true seats: 2:\nflight a\n"
+                 + "Reservation 2 paid: false:\nflight b\nflight c\n", out.toString());
+  }
+
+  @Test
+  public void testLeavesOutExpiredHolds() throws IOException {
+    ReservationView view = new ReservationView(0);
+    view.add(1, false, 1, Arrays.asList("flight a"), 1000);
+    view.add(2, false, 1, Arrays.asList("flight b"), 1000);
+    view.markPaid(2);
+
+    StringBuilder out = new StringBuilder();
+    assertEquals(1, view.writeTo(out, 2000));
+    assertEquals("Reservation 2 paid: true:\nflight b\n", out.toString());
+  }
+}
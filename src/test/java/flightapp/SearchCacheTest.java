@@ -0,0 +1,69 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class SearchCacheTest extends TestCase {
+  public SearchCacheTest() { }
+
+  private static SearchCache.Key key(int day) {
+    return new SearchCache.Key(7, 42, false, day, 3);
+  }
+
+  @Test
+  public void testReturnsCachedResult() {
+    SearchCache<String> cache = new SearchCache<>(10, 0);
+    cache.put(key(1), "result");
+
+    // Keys are compared by value, not identity.
+    assertEquals("result", cache.get(key(1)));
+    assertNull(cache.get(key(2)));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    SearchCache<String> cache = new SearchCache<>(2, 0);
+    cache.put(key(1), "one");
+    cache.put(key(2), "two");
+    cache.get(key(1));
+    cache.put(key(3), "three");
+
+    // Day 2 was touched least recently, so it's the one that makes room for day 3.
+    assertEquals("one", cache.get(key(1)));
+    assertNull(cache.get(key(2)));
+    assertEquals("three", cache.get(key(3)));
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.evictions());
+  }
+
+  @Test
+  public void testEntriesExpire() {
+    long[] now = {0};
+    SearchCache<String> cache = new SearchCache<>(10, 60, () -> now[0]);
+    cache.put(key(1), "result");
+
+    now[0] = TimeUnit.SECONDS.toNanos(59);
+    assertEquals("result", cache.get(key(1)));
+
+    now[0] = TimeUnit.SECONDS.toNanos(60);
+    assertNull(cache.get(key(1)));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    SearchCache<String> cache = new SearchCache<>(10, 0);
+    cache.put(key(1), "one");
+    cache.put(key(2), "two");
+    cache.invalidateAll();
+
+    assertEquals(0, cache.size());
+    assertNull(cache.get(key(1)));
+  }
+}
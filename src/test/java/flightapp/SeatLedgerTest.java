@@ -0,0 +1,60 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+public class SeatLedgerTest extends TestCase {
+  public SeatLedgerTest() { }
+
+  @Test
+  public void testAdmitsUntilSoldOut() {
+    SeatLedger ledger = new SeatLedger();
+    ledger.seed(1, 2);
+    assertTrue(ledger.tryAcquire(new int[] {1}));
+    assertTrue(ledger.tryAcquire(new int[] {1}));
+    assertFalse(ledger.tryAcquire(new int[] {1}));
+
+    ledger.release(new int[] {1});
+    assertTrue(ledger.tryAcquire(new int[] {1}));
+    ledger.commit(new int[] {1});
+    assertEquals(Integer.valueOf(0), ledger.available(1));
+  }
+
+  @Test
+  public void testAdmitsAllFlightsOrNone() {
+    SeatLedger ledger = new SeatLedger();
+    ledger.seed(1, 1);
+    ledger.seed(2, 0);
+    assertFalse(ledger.tryAcquire(new int[] {1, 2}));
+    assertEquals(Integer.valueOf(1), ledger.available(1));
+  }
+
+  @Test
+  public void testAdmitsUntrackedFlights() {
+    SeatLedger ledger = new SeatLedger();
+    assertFalse(ledger.isTracked(3));
+    assertTrue(ledger.tryAcquire(new int[] {3}));
+    ledger.commit(new int[] {3});
+    assertNull(ledger.available(3));
+  }
+
+  @Test
+  public void testSoldOutDrainsAdmittedBookings() {
+    SeatLedger ledger = new SeatLedger();
+    ledger.seed(1, 5);
+    assertTrue(ledger.tryAcquire(new int[] {1}));
+    assertTrue(ledger.tryAcquire(new int[] {1}));
+
+    // Both admitted bookings will fail, and returning their seats mustn't reopen the flight.
+    ledger.markSoldOut(1);
+    ledger.release(new int[] {1});
+    assertFalse(ledger.tryAcquire(new int[] {1}));
+    ledger.release(new int[] {1});
+    assertEquals(Integer.valueOf(0), ledger.available(1));
+  }
+}